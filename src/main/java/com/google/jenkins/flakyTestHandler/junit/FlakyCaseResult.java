@@ -17,11 +17,12 @@ package com.google.jenkins.flakyTestHandler.junit;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 
+import com.google.jenkins.flakyTestHandler.junit.FlakyReportParser.Element;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyDataCompression;
 import com.google.jenkins.flakyTestHandler.plugin.JUnitFlakyTestDataAction;
 
 import jakarta.annotation.Nonnull;
 import org.apache.commons.io.FileUtils;
-import org.dom4j.Element;
 import org.jvnet.localizer.Localizable;
 import org.kohsuke.accmod.restrictions.suppressions.SuppressRestrictedWarnings;
 import org.kohsuke.stapler.export.Exported;
@@ -36,9 +37,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import hudson.model.AbstractBuild;
+import hudson.model.Run;
 import hudson.tasks.junit.Messages;
 import hudson.tasks.junit.TestAction;
 import hudson.tasks.junit.TestNameTransformer;
@@ -82,7 +85,12 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
    * If these information are reported at the test case level, these fields are set,
    * otherwise null, in which case {@link FlakySuiteResult#stdout}.
    */
-  private final String stdout,stderr;
+  private String stdout,stderr;
+
+  /**
+   * stdout and stderr of this test once moved to a {@link FlakyStdioStore}, otherwise null
+   */
+  private FlakyStdioStore.Ref stdoutRef,stderrRef;
 
   private final List<FlakyRunInformation> flakyRuns;
 
@@ -125,7 +133,7 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
     stderr = possiblyTrimStdio(_this, keepLongStdio, testCase.elementText("system-err"));
 
     // Add flaky tests information
-    List flakyElements = getAllFlakyElements(testCase);
+    List<Element> flakyElements = getAllFlakyElements(testCase);
     flakyRuns = getFlakyRunInformation(flakyElements);
   }
 
@@ -187,8 +195,7 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
 
   private static List<Element> getAllFlakyElements(Element testCase) {
     List<Element> flakyElements = new ArrayList<Element>();
-    for (Object object : testCase.elements()) {
-      Element element = (Element) object;
+    for (Element element : testCase.elements()) {
       if (element.getName().equals("flakyFailure") || element.getName().equals("flakyError")
           || element.getName()
           .equals("rerunFailure") || element.getName().equals("rerunError")) {
@@ -288,6 +295,12 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
   }
 
   public List<FlakyRunInformation> getFlakyRuns() {
+    Run<?,?> run = getRun();
+    if (run != null) {
+      for (FlakyRunInformation flakyRun : flakyRuns) {
+        flakyRun.setBuildDir(run.getRootDir());
+      }
+    }
     return flakyRuns;
   }
 
@@ -408,6 +421,10 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
   @Exported
   public String getStdout() {
     if(stdout!=null)    return stdout;
+    if(stdoutRef!=null) {
+      String stored = readStdio(stdoutRef);
+      if(stored!=null) return stored;
+    }
     FlakySuiteResult sr = getSuiteResult();
     if (sr==null) return "";
     return getSuiteResult().getStdout();
@@ -422,11 +439,33 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
   @Exported
   public String getStderr() {
     if(stderr!=null)    return stderr;
+    if(stderrRef!=null) {
+      String stored = readStdio(stderrRef);
+      if(stored!=null) return stored;
+    }
     FlakySuiteResult sr = getSuiteResult();
     if (sr==null) return "";
     return getSuiteResult().getStderr();
   }
 
+  private String readStdio(FlakyStdioStore.Ref ref) {
+    Run<?,?> run = getRun();
+    return FlakyStdioStore.read(run == null ? null : run.getRootDir(), ref);
+  }
+
+  /**
+   * Move the stdout and stderr of this test and of its reruns to a store
+   */
+  /*package*/ void storeStdio(FlakyStdioStore store) throws IOException {
+    stdoutRef = store.store(stdout);
+    stdout = null;
+    stderrRef = store.store(stderr);
+    stderr = null;
+    for (FlakyRunInformation flakyRun : flakyRuns) {
+      flakyRun.storeStdio(store);
+    }
+  }
+
   @Override
   public FlakyCaseResult getPreviousResult() {
     if (parent == null) return null;
@@ -661,38 +700,104 @@ public class FlakyCaseResult extends TestResult implements Comparable<FlakyCaseR
     }
   }
 
+  /**
+   * Details of one flaky run of a test. The strings are kept deflated in one payload, and each is
+   * only inflated when read, so the rerun details don't weigh on the build record or on memory
+   * until a page shows them.
+   */
   public static class FlakyRunInformation implements Serializable {
 
+    private static final int ERROR_DETAILS = 0;
+
+    private static final int ERROR_STACK_TRACE = 1;
+
+    private static final int STD_OUT = 2;
+
+    private static final int STD_ERR = 3;
+
     public FlakyRunInformation(String flakyErrorDetails, String flakyErrorStackTrace,
         String flakyStdOut, String flakyStdErr) {
-      this.flakyErrorDetails = flakyErrorDetails;
-      this.flakyErrorStackTrace = flakyErrorStackTrace;
-      this.flakyStdOut = flakyStdOut;
-      this.flakyStdErr = flakyStdErr;
+      this.payload = FlakyDataCompression.compressStrings(flakyErrorDetails, flakyErrorStackTrace,
+          flakyStdOut, flakyStdErr);
     }
 
-    final String flakyErrorDetails;
+    /**
+     * Compressed details, null for the runs recorded before they were compressed
+     */
+    private byte[] payload;
 
-    final String flakyErrorStackTrace;
+    // Details of the runs recorded before they were compressed
+    private String flakyErrorDetails;
 
-    final String flakyStdOut;
+    private String flakyErrorStackTrace;
 
-    final String flakyStdErr;
+    private String flakyStdOut;
+
+    private String flakyStdErr;
+
+    /**
+     * stdout and stderr of the run once moved to a {@link FlakyStdioStore}, otherwise they are in
+     * the payload
+     */
+    private FlakyStdioStore.Ref flakyStdOutRef;
+
+    private FlakyStdioStore.Ref flakyStdErrRef;
+
+    /**
+     * Directory of the build, which the stored stdout and stderr are read from
+     */
+    private transient File buildDir;
 
     public String getFlakyErrorDetails() {
-      return flakyErrorDetails;
+      return payload == null ? flakyErrorDetails : decompress(ERROR_DETAILS);
     }
 
     public String getFlakyErrorStackTrace() {
-      return flakyErrorStackTrace;
+      return payload == null ? flakyErrorStackTrace : decompress(ERROR_STACK_TRACE);
     }
 
     public String getFlakyStdOut() {
-      return flakyStdOut;
+      if (flakyStdOutRef != null) {
+        return FlakyStdioStore.read(buildDir, flakyStdOutRef);
+      }
+      return payload == null ? flakyStdOut : decompress(STD_OUT);
     }
 
     public String getFlakyStdErr() {
-      return flakyStdErr;
+      if (flakyStdErrRef != null) {
+        return FlakyStdioStore.read(buildDir, flakyStdErrRef);
+      }
+      return payload == null ? flakyStdErr : decompress(STD_ERR);
+    }
+
+    /*package*/ void setBuildDir(File buildDir) {
+      this.buildDir = buildDir;
+    }
+
+    /**
+     * Move the stdout and stderr of the run out of its payload to a store
+     */
+    /*package*/ void storeStdio(FlakyStdioStore store) throws IOException {
+      String stdOut = getFlakyStdOut();
+      String stdErr = getFlakyStdErr();
+      if (payload == null || (stdOut == null && stdErr == null)) {
+        return;
+      }
+      FlakyStdioStore.Ref stdOutRef = store.store(stdOut);
+      FlakyStdioStore.Ref stdErrRef = store.store(stdErr);
+      payload = FlakyDataCompression.compressStrings(getFlakyErrorDetails(),
+          getFlakyErrorStackTrace(), null, null);
+      flakyStdOutRef = stdOutRef;
+      flakyStdErrRef = stdErrRef;
+    }
+
+    private String decompress(int index) {
+      try {
+        return FlakyDataCompression.decompressString(payload, index);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to decompress flaky run details", e);
+        return null;
+      }
     }
   }
 
@@ -0,0 +1,243 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming parser of JUnit XML reports. Instead of building the DOM of the whole report, it only
+ * keeps the elements {@link FlakySuiteResult} and {@link FlakyCaseResult} are built from, and
+ * builds each suite as soon as its element ends, so at most one suite is held in memory.
+ *
+ * <p>Suites are reported in the order their elements end, nested suites before the suite holding
+ * them, which is the order the reports were always parsed in.
+ */
+final class FlakyReportParser extends DefaultHandler {
+
+  private static final Set<String> FLAKY_ELEMENTS =
+      ImmutableSet.of("flakyFailure", "flakyError", "rerunFailure", "rerunError");
+
+  /** Children of a test case or a suite the results are built from */
+  private static final Set<String> CASE_ELEMENTS = ImmutableSet.<String>builder()
+      .add("error", "failure", "skipped", "system-out", "system-err")
+      .addAll(FLAKY_ELEMENTS)
+      .build();
+
+  /** Elements whose text is part of the results */
+  private static final Set<String> TEXT_ELEMENTS = ImmutableSet.<String>builder()
+      .add("error", "failure", "system-out", "system-err")
+      .addAll(FLAKY_ELEMENTS)
+      .build();
+
+  private final File xmlReport;
+  private final boolean keepLongStdio;
+  private final List<FlakySuiteResult> results = new ArrayList<FlakySuiteResult>();
+
+  /** Kept elements being parsed, the innermost first */
+  private final Deque<Element> open = new ArrayDeque<Element>();
+  /** Number of elements being parsed inside the innermost kept one which aren't needed */
+  private int skippedDepth;
+
+  FlakyReportParser(File xmlReport, boolean keepLongStdio) {
+    this.xmlReport = xmlReport;
+    this.keepLongStdio = keepLongStdio;
+  }
+
+  /**
+   * @return the suites parsed, in the order of {@link FlakySuiteResult#parse}
+   */
+  List<FlakySuiteResult> getResults() {
+    return results;
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes attributes) {
+    String name = localName == null || localName.isEmpty() ? qName : localName;
+    if (skippedDepth > 0 || !isKept(open.peek(), name)) {
+      skippedDepth++;
+      return;
+    }
+    Element element = new Element(name, attributes, open.isEmpty());
+    if (open.peek() != null && !element.isSuite()) {
+      // Nested suites are turned into results of their own, not into children
+      open.peek().children.add(element);
+    }
+    open.push(element);
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) {
+    if (skippedDepth == 0 && open.peek() != null && open.peek().text != null) {
+      open.peek().text.append(ch, start, length);
+    }
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    if (skippedDepth > 0) {
+      skippedDepth--;
+      return;
+    }
+    Element element = open.pop();
+    if (element.isSuite()
+        && (element.element("testcase") != null || element.element("error") != null)) {
+      try {
+        results.add(new FlakySuiteResult(xmlReport, element, keepLongStdio));
+      } catch (IOException e) {
+        throw new ResultException(e);
+      }
+    }
+  }
+
+  /**
+   * Whether an element is needed to build the results.
+   *
+   * @param parent the element holding it, null for the root
+   * @param name name of the element
+   */
+  private static boolean isKept(Element parent, String name) {
+    if (parent == null) {
+      // Like a 'testsuite', the root may be a suite of its own
+      return true;
+    }
+    if (parent.isSuite()) {
+      return name.equals("testsuite") || name.equals("testcase") || CASE_ELEMENTS.contains(name);
+    }
+    if (parent.name.equals("testcase")) {
+      return CASE_ELEMENTS.contains(name);
+    }
+    if (FLAKY_ELEMENTS.contains(parent.name)) {
+      return name.equals("system-out") || name.equals("system-err");
+    }
+    return false;
+  }
+
+  /**
+   * Failure to build a result while parsing, as opposed to a report which can't be parsed.
+   */
+  static final class ResultException extends SAXException {
+    ResultException(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public IOException getException() {
+      return (IOException) super.getException();
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Part of a report kept to build the results from, with the accessors of a DOM element the
+   * results used to be built with.
+   */
+  static final class Element {
+    private final String name;
+    private final boolean suite;
+    private final Map<String, String> attributes;
+    private final StringBuilder text;
+    private final List<Element> children = new ArrayList<Element>();
+
+    Element(String name, Attributes attributes, boolean root) {
+      this.name = name;
+      this.suite = root || name.equals("testsuite");
+      if (attributes.getLength() == 0) {
+        this.attributes = Collections.emptyMap();
+      } else {
+        this.attributes = new HashMap<String, String>();
+        for (int i = 0; i < attributes.getLength(); i++) {
+          String attributeName = attributes.getLocalName(i);
+          if (attributeName == null || attributeName.isEmpty()) {
+            attributeName = attributes.getQName(i);
+          }
+          this.attributes.put(attributeName, attributes.getValue(i));
+        }
+      }
+      this.text = TEXT_ELEMENTS.contains(name) ? new StringBuilder() : null;
+    }
+
+    private boolean isSuite() {
+      return suite;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String attributeValue(String attributeName) {
+      return attributes.get(attributeName);
+    }
+
+    /**
+     * @return the text directly inside this element, without the one of its children
+     */
+    String getText() {
+      return text == null ? "" : text.toString();
+    }
+
+    /**
+     * @return the first child with the given name, or null
+     */
+    Element element(String childName) {
+      for (Element child : children) {
+        if (child.name.equals(childName)) {
+          return child;
+        }
+      }
+      return null;
+    }
+
+    List<Element> elements() {
+      return children;
+    }
+
+    /**
+     * @return the children with the given name
+     */
+    List<Element> elements(String childName) {
+      List<Element> elements = new ArrayList<Element>();
+      for (Element child : children) {
+        if (child.name.equals(childName)) {
+          elements.add(child);
+        }
+      }
+      return elements;
+    }
+
+    /**
+     * @return the text of the first child with the given name, or null
+     */
+    String elementText(String childName) {
+      Element child = element(childName);
+      return child == null ? null : child.getText();
+    }
+  }
+}
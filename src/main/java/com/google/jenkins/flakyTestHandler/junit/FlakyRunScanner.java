@@ -0,0 +1,213 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scans a JUnit XML report for the reruns of its tests only. Unlike {@link FlakySuiteResult#parse},
+ * no result is built for the test cases, and the text of the report is only kept for the rerun
+ * elements, so a report of mostly clean tests is scanned for little more than the cost of reading
+ * it.
+ *
+ * <p>Tests are identified by their class and test names, worked out from the report the same way
+ * as {@link FlakyCaseResult} and the junit plugin do, so the reruns can be joined onto the test
+ * results parsed by the junit plugin.
+ */
+public final class FlakyRunScanner extends DefaultHandler {
+
+  private static final Set<String> FLAKY_ELEMENTS =
+      ImmutableSet.of("flakyFailure", "flakyError", "rerunFailure", "rerunError");
+
+  private static final int SUITE = 0;
+  private static final int CASE = 1;
+  private static final int RERUN = 2;
+  private static final int STDIO = 3;
+  private static final int IGNORED = 4;
+
+  /** Elements being scanned, the innermost first */
+  private final Deque<Frame> open = new ArrayDeque<Frame>();
+
+  private final Map<String, List<FlakyRunInformation>> flakyRuns =
+      new HashMap<String, List<FlakyRunInformation>>();
+
+  private FlakyRunScanner() {
+  }
+
+  /**
+   * Scan a report for the reruns of its tests. On an agent, this has to be called on the thread
+   * handling the call from the master, like {@link FlakySuiteResult#createReader}.
+   *
+   * @param xmlReport the report
+   * @return the reruns of the tests which have some, by {@link #key}
+   * @throws IOException if the report can't be read or parsed
+   * @throws InterruptedException if interrupted while configuring the parser
+   */
+  public static Map<String, List<FlakyRunInformation>> scan(File xmlReport)
+      throws IOException, InterruptedException {
+    return scan(xmlReport, null);
+  }
+
+  /**
+   * Scan a report for the reruns of its tests, moving their stdout and stderr to a store
+   *
+   * @param xmlReport the report
+   * @param stdioStore store for the stdout and stderr of the reruns, null to keep them in the
+   *     reruns
+   * @return the reruns of the tests which have some, by {@link #key}
+   * @throws IOException if the report can't be read or parsed
+   * @throws InterruptedException if interrupted while configuring the parser
+   */
+  public static Map<String, List<FlakyRunInformation>> scan(File xmlReport,
+      FlakyStdioStore stdioStore) throws IOException, InterruptedException {
+    FlakyRunScanner scanner = new FlakyRunScanner();
+    try {
+      FlakySuiteResult.parse(xmlReport, FlakySuiteResult.createReader(xmlReport), scanner);
+    } catch (SAXException e) {
+      throw new IOException("Failed to scan " + xmlReport, e);
+    }
+    if (stdioStore != null) {
+      for (List<FlakyRunInformation> runs : scanner.flakyRuns.values()) {
+        for (FlakyRunInformation run : runs) {
+          run.storeStdio(stdioStore);
+        }
+      }
+    }
+    return scanner.flakyRuns;
+  }
+
+  /**
+   * Get the key of a test in the result of {@link #scan}
+   *
+   * @param className class name of the test
+   * @param testName name of the test
+   * @return the key
+   */
+  public static String key(String className, String testName) {
+    return className + "." + testName;
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes attributes) {
+    String name = localName == null || localName.isEmpty() ? qName : localName;
+    Frame parent = open.peek();
+    Frame frame;
+    if (parent == null || (parent.kind == SUITE && name.equals("testsuite"))) {
+      // Like a 'testsuite', the root may be a suite of its own
+      frame = new Frame(SUITE);
+      frame.className = "<init>";
+      frame.testName = attributes.getValue("name");
+    } else if (parent.kind == SUITE && name.equals("testcase")) {
+      frame = new Frame(CASE);
+      String className = attributes.getValue("classname");
+      if (className == null) {
+        className = parent.testName;
+      }
+      String testName = attributes.getValue("name");
+      if (className == null && testName.contains(".")) {
+        className = testName.substring(0, testName.lastIndexOf('.'));
+        testName = testName.substring(testName.lastIndexOf('.') + 1);
+      }
+      frame.className = className;
+      frame.testName = testName;
+    } else if ((parent.kind == SUITE || parent.kind == CASE) && FLAKY_ELEMENTS.contains(name)) {
+      frame = new Frame(RERUN);
+      frame.message = attributes.getValue("message");
+    } else if (parent.kind == RERUN && (name.equals("system-out") || name.equals("system-err"))) {
+      frame = new Frame(STDIO);
+      frame.message = name;
+    } else {
+      frame = new Frame(IGNORED);
+    }
+    if (frame.kind == RERUN || frame.kind == STDIO) {
+      frame.text = new StringBuilder();
+    }
+    open.push(frame);
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) {
+    Frame frame = open.peek();
+    if (frame != null && frame.text != null) {
+      frame.text.append(ch, start, length);
+    }
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) {
+    Frame frame = open.pop();
+    Frame parent = open.peek();
+    switch (frame.kind) {
+      case STDIO:
+        // Only the first system-out and system-err of a rerun are kept
+        if (frame.message.equals("system-out") && parent.stdout == null) {
+          parent.stdout = frame.text.toString();
+        } else if (frame.message.equals("system-err") && parent.stderr == null) {
+          parent.stderr = frame.text.toString();
+        }
+        break;
+      case RERUN:
+        if (parent.flakyRuns == null) {
+          parent.flakyRuns = new ArrayList<FlakyRunInformation>();
+        }
+        parent.flakyRuns.add(new FlakyRunInformation(frame.message, frame.text.toString(),
+            frame.stdout, frame.stderr));
+        break;
+      case SUITE:
+      case CASE:
+        if (frame.flakyRuns != null && frame.testName != null) {
+          flakyRuns.put(key(frame.className, frame.testName), frame.flakyRuns);
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Element being scanned
+   */
+  private static final class Frame {
+    private final int kind;
+    /** Class and test name of a test case, or of the test a suite reports its errors as */
+    private String className;
+    private String testName;
+    /** Message of a rerun, or name of a stdio element */
+    private String message;
+    private StringBuilder text;
+    private String stdout;
+    private String stderr;
+    private List<FlakyRunInformation> flakyRuns;
+
+    Frame(int kind) {
+      this.kind = kind;
+    }
+  }
+}
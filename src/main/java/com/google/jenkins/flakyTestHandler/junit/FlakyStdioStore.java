@@ -0,0 +1,142 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyDataCompression;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Standard output and error of tests, stored in a file of their build rather than in the test
+ * results. Each text is deflated on its own and referred to by its offset and length in the file,
+ * so the results don't grow with the output of the tests, and a text is only read when a page
+ * shows it.
+ *
+ * <p>The file is written where the reports are parsed, usually on an agent, under the name it
+ * is then archived with in the build directory.
+ */
+public final class FlakyStdioStore implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyStdioStore.class.getName());
+
+  /**
+   * Prefix of the names of the files in build directories
+   */
+  public static final String FILE_PREFIX = "flakyTestStdio";
+
+  /**
+   * Suffix of the names of the files in build directories
+   */
+  public static final String FILE_SUFFIX = ".bin";
+
+  private final String name;
+
+  private final OutputStream out;
+
+  private long size;
+
+  /**
+   * @param file the file to write
+   * @param name name of the file once archived in the build directory
+   * @throws IOException if the file can't be created
+   */
+  public FlakyStdioStore(File file, String name) throws IOException {
+    this.name = name;
+    this.out = new BufferedOutputStream(new FileOutputStream(file));
+  }
+
+  /**
+   * Store a text
+   *
+   * @param text the text, possibly null
+   * @return the reference to the text, null for a null text
+   * @throws IOException if the text can't be written
+   */
+  Ref store(String text) throws IOException {
+    if (text == null) {
+      return null;
+    }
+    byte[] payload = FlakyDataCompression.compressStrings(text);
+    out.write(payload);
+    Ref ref = new Ref(name, size, payload.length);
+    size += payload.length;
+    return ref;
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Read a stored text
+   *
+   * @param buildDir the build directory the file was archived to, possibly null if unknown
+   * @param ref the reference to the text
+   * @return the text, or null if it can't be read
+   */
+  static String read(File buildDir, Ref ref) {
+    if (buildDir == null) {
+      return null;
+    }
+    File file = new File(buildDir, ref.name);
+    try {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        byte[] payload = new byte[ref.length];
+        in.seek(ref.offset);
+        in.readFully(payload);
+        return FlakyDataCompression.decompressString(payload, 0);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read test output from " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Reference to a stored text
+   */
+  static final class Ref implements Serializable {
+
+    /**
+     * Name of the file in the build directory
+     */
+    private final String name;
+
+    private final long offset;
+
+    private final int length;
+
+    Ref(String name, long offset, int length) {
+      this.name = name;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+}
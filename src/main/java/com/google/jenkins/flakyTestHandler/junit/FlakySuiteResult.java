@@ -14,9 +14,9 @@
  */
 package com.google.jenkins.flakyTestHandler.junit;
 
-import org.dom4j.Document;
+import com.google.jenkins.flakyTestHandler.junit.FlakyReportParser.Element;
+
 import org.dom4j.DocumentException;
-import org.dom4j.Element;
 import org.dom4j.io.SAXReader;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
@@ -33,10 +33,17 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import hudson.model.Run;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.test.TestObject;
 import hudson.util.io.ParserConfigurator;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Result of one test suite augmented with flaky information.
@@ -50,8 +57,13 @@ import org.xml.sax.SAXException;
 public final class FlakySuiteResult implements Serializable {
   private final String file;
   private final String name;
-  private final String stdout;
-  private final String stderr;
+  private String stdout;
+  private String stderr;
+  /**
+   * stdout and stderr of the suite once moved to a {@link FlakyStdioStore}, otherwise null
+   */
+  private FlakyStdioStore.Ref stdoutRef;
+  private FlakyStdioStore.Ref stderrRef;
   private float duration;
   /**
    * The 'timestamp' attribute of  the test suite.
@@ -103,43 +115,73 @@ public final class FlakySuiteResult implements Serializable {
    * elements wrapped into the top-level &lt;testsuites>.
    */
   static List<FlakySuiteResult> parse(File xmlReport, boolean keepLongStdio) throws DocumentException, IOException, InterruptedException, SAXException {
-    List<FlakySuiteResult> r = new ArrayList<FlakySuiteResult>();
+    return parse(xmlReport, createReader(xmlReport), keepLongStdio);
+  }
 
-    // parse into DOM
+  /**
+   * Creates the reader configuring the parser of a JUnit XML file. On an agent, this has to be
+   * called on the thread handling the call from the master, as the {@link ParserConfigurator}s
+   * are looked up through it.
+   */
+  static SAXReader createReader(File xmlReport) throws IOException, InterruptedException, SAXException {
     SAXReader saxReader = new SAXReader();
     saxReader.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
     saxReader.setFeature("http://xml.org/sax/features/external-general-entities", false);
     saxReader.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
     ParserConfigurator.applyConfiguration(saxReader,new SuiteResultParserConfigurationContext(xmlReport));
+    return saxReader;
+  }
 
-    Document result = saxReader.read(xmlReport);
-    Element root = result.getRootElement();
-
-    parseSuite(xmlReport,keepLongStdio,r,root);
-
-    return r;
+  /**
+   * Parses the JUnit XML file into {@link FlakySuiteResult}s with a reader created by
+   * {@link #createReader}, on any thread.
+   *
+   * <p>The report is streamed through {@link FlakyReportParser} rather than read into a DOM, but
+   * the parser is still configured through a {@link SAXReader} so {@link ParserConfigurator}s keep
+   * applying to it.
+   */
+  static List<FlakySuiteResult> parse(File xmlReport, SAXReader saxReader, boolean keepLongStdio) throws DocumentException, IOException {
+    FlakyReportParser parser = new FlakyReportParser(xmlReport, keepLongStdio);
+    try {
+      parse(xmlReport, saxReader, parser);
+    } catch (FlakyReportParser.ResultException e) {
+      throw e.getException();
+    } catch (SAXParseException e) {
+      // Same as SAXReader, so broken reports are told apart in the same way
+      throw new DocumentException("Error on line " + e.getLineNumber() + " of document "
+          + e.getSystemId() + " : " + e.getMessage(), e);
+    } catch (SAXException | IOException e) {
+      throw new DocumentException(e.getMessage(), e);
+    }
+    return parser.getResults();
   }
 
-  private static void parseSuite(File xmlReport, boolean keepLongStdio, List<FlakySuiteResult> r, Element root) throws DocumentException, IOException {
-    // nested test suites
-    @SuppressWarnings("unchecked")
-    List<Element> testSuites = (List<Element>)root.elements("testsuite");
-    for (Element suite : testSuites)
-      parseSuite(xmlReport, keepLongStdio, r, suite);
-
-    // child test cases
-    // FIXME: do this also if no testcases!
-    if (root.element("testcase")!=null || root.element("error")!=null)
-      r.add(new FlakySuiteResult(xmlReport, root, keepLongStdio));
+  /**
+   * Streams a JUnit XML file through a handler, with a reader created by {@link #createReader}.
+   */
+  static void parse(File xmlReport, SAXReader saxReader, DefaultHandler handler) throws IOException, SAXException {
+    XMLReader reader = saxReader.getXMLReader();
+    XMLFilter filter = saxReader.getXMLFilter();
+    if (filter != null) {
+      filter.setParent(reader);
+      reader = filter;
+    }
+    if (saxReader.getEntityResolver() != null) {
+      reader.setEntityResolver(saxReader.getEntityResolver());
+    }
+    ErrorHandler errorHandler = saxReader.getErrorHandler();
+    reader.setContentHandler(handler);
+    reader.setErrorHandler(errorHandler != null ? errorHandler : handler);
+    reader.parse(new InputSource(xmlReport.toURI().toString()));
   }
 
   /**
    * @param xmlReport
    *      A JUnit XML report file whose top level element is 'testsuite'.
    * @param suite
-   *      The parsed result of {@code xmlReport}
+   *      The parsed suite element of {@code xmlReport}
    */
-  private FlakySuiteResult(File xmlReport, Element suite, boolean keepLongStdio) throws DocumentException, IOException {
+  FlakySuiteResult(File xmlReport, Element suite, boolean keepLongStdio) throws IOException {
     this.file = xmlReport.getAbsolutePath();
     String name = suite.attributeValue("name");
     if(name==null)
@@ -160,9 +202,7 @@ public final class FlakySuiteResult implements Serializable {
       addCase(new FlakyCaseResult(this, suite, "<init>", keepLongStdio));
     }
 
-    @SuppressWarnings("unchecked")
-    List<Element> testCases = (List<Element>)suite.elements("testcase");
-    for (Element e : testCases) {
+    for (Element e : suite.elements("testcase")) {
       // https://issues.jenkins-ci.org/browse/JENKINS-1233 indicates that
       // when <testsuites> is present, we are better off using @classname on the
       // individual testcase class.
@@ -232,7 +272,7 @@ public final class FlakySuiteResult implements Serializable {
    */
   @Exported
   public String getStdout() {
-    return stdout;
+    return stdoutRef != null ? readStdio(stdoutRef) : stdout;
   }
 
   /**
@@ -244,7 +284,25 @@ public final class FlakySuiteResult implements Serializable {
    */
   @Exported
   public String getStderr() {
-    return stderr;
+    return stderrRef != null ? readStdio(stderrRef) : stderr;
+  }
+
+  private String readStdio(FlakyStdioStore.Ref ref) {
+    Run<?,?> run = parent == null ? null : parent.getRun();
+    return FlakyStdioStore.read(run == null ? null : run.getRootDir(), ref);
+  }
+
+  /**
+   * Move the stdout and stderr of this suite and of its cases to a store
+   */
+  /*package*/ void storeStdio(FlakyStdioStore store) throws IOException {
+    stdoutRef = store.store(stdout);
+    stdout = null;
+    stderrRef = store.store(stderr);
+    stderr = null;
+    for (FlakyCaseResult c : cases) {
+      c.storeStdio(store);
+    }
   }
 
   /*
@@ -16,25 +16,39 @@ package com.google.jenkins.flakyTestHandler.junit;
 
 import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
 import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+import com.google.jenkins.flakyTestHandler.plugin.RevisionResolver;
+
+import com.google.common.util.concurrent.Callables;
 
 import org.apache.tools.ant.DirectoryScanner;
 import org.dom4j.DocumentException;
+import org.dom4j.io.SAXReader;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
 import org.kohsuke.stapler.export.Exported;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import hudson.AbortException;
 import hudson.Util;
@@ -44,6 +58,8 @@ import hudson.tasks.junit.TestResult;
 import hudson.tasks.test.AbstractTestResultAction;
 import hudson.tasks.test.MetaTabulatedResult;
 import hudson.tasks.test.TestObject;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import org.xml.sax.SAXException;
 
 /**
@@ -67,6 +83,12 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    */
   private transient Map<String,FlakySuiteResult> suitesByName;
 
+  /**
+   * {@link #suites} keyed by their names and ids, to find the suite a parsed suite is merged into.
+   * Built when first needed and kept up to date by {@link #add}.
+   */
+  private transient Map<List<String>,FlakySuiteResult> suitesByNameAndId;
+
   /**
    * Results tabulated by package.
    */
@@ -112,27 +134,97 @@ public final class FlakyTestResult extends MetaTabulatedResult {
 
   private final boolean keepLongStdio;
 
+  /**
+   * Number of report files parsed at the same time, 1 or less to parse them one by one
+   */
+  private transient int parsingParallelism;
+
+  /**
+   * Number of report files parsed ahead of the ones merged per parsing thread
+   */
+  private static final int FILES_AHEAD_PER_THREAD = 4;
+
   /**
    * Construct {@link #FlakyTestResult} from {@link hudson.tasks.junit.TestResult}
    *
    * @param testResult result of tests
    */
   public FlakyTestResult(TestResult testResult) {
+    this(testResult, 1);
+  }
+
+  /**
+   * Construct {@link #FlakyTestResult} from {@link hudson.tasks.junit.TestResult}, parsing its
+   * report files on up to the given number of threads
+   *
+   * @param testResult result of tests
+   * @param parsingParallelism number of report files parsed at the same time
+   */
+  public FlakyTestResult(TestResult testResult, int parsingParallelism) {
+    this(testResult, parsingParallelism, null);
+  }
+
+  /**
+   * Construct {@link #FlakyTestResult} from {@link hudson.tasks.junit.TestResult}, parsing its
+   * report files on up to the given number of threads and moving the stdout and stderr of the
+   * tests to a store as soon as each file is parsed
+   *
+   * @param testResult result of tests
+   * @param parsingParallelism number of report files parsed at the same time
+   * @param stdioStore store for the stdout and stderr of the tests, null to keep them in the
+   *     results
+   */
+  public FlakyTestResult(final TestResult testResult, int parsingParallelism,
+      final FlakyStdioStore stdioStore) {
+    keepLongStdio = true;
+    this.parsingParallelism = parsingParallelism;
 
-    Set<String> resultFiles = new HashSet<>();
+    Set<File> resultFiles = new LinkedHashSet<>();
     for (SuiteResult suiteResult : testResult.getSuites()) {
-      resultFiles.add(suiteResult.getFile());
+      resultFiles.add(new File(suiteResult.getFile()));
     }
 
-    for (String resultFile : resultFiles) {
-      try {
-        suites.addAll(FlakySuiteResult.parse(new File(resultFile), true));
-        testResultInstance = testResult;
-      } catch (DocumentException | IOException | InterruptedException | SAXException e) {
-        e.printStackTrace();
-      }
+    try {
+      new OrderedReportParsing() {
+        @Override
+        Callable<List<FlakySuiteResult>> prepare(final File resultFile) {
+          final SAXReader reader;
+          try {
+            reader = FlakySuiteResult.createReader(resultFile);
+          } catch (IOException | InterruptedException | SAXException e) {
+            e.printStackTrace();
+            return Callables.returning(null);
+          }
+          return new Callable<List<FlakySuiteResult>>() {
+            @Override
+            public List<FlakySuiteResult> call() {
+              try {
+                return FlakySuiteResult.parse(resultFile, reader, true);
+              } catch (DocumentException | IOException e) {
+                e.printStackTrace();
+                return null;
+              }
+            }
+          };
+        }
+
+        @Override
+        void merge(List<FlakySuiteResult> parsed) throws IOException {
+          if (parsed != null) {
+            if (stdioStore != null) {
+              for (FlakySuiteResult sr : parsed) {
+                sr.storeStdio(stdioStore);
+              }
+            }
+            suites.addAll(parsed);
+            suitesByNameAndId = null;
+            testResultInstance = testResult;
+          }
+        }
+      }.run(resultFiles);
+    } catch (IOException e) {
+      e.printStackTrace();
     }
-    keepLongStdio = true;
   }
 
   public FlakyTestResult() {
@@ -143,6 +235,16 @@ public final class FlakyTestResult extends MetaTabulatedResult {
     return parent;
   }
 
+  /**
+   * Set the number of report files parsed at the same time by the next calls to {@code parse}.
+   * Whatever the number, the suites of the files are merged in the order of the files.
+   *
+   * @param parsingParallelism number of files, 1 to parse them one by one
+   */
+  public void setParsingParallelism(int parsingParallelism) {
+    this.parsingParallelism = parsingParallelism;
+  }
+
   @Override
   public void setParent(TestObject parent) {
     this.parent = parent;
@@ -174,18 +276,18 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    */
   public void parse(long buildTime, File baseDir, String[] reportFiles) throws IOException {
 
-    boolean parsed=false;
+    List<File> updatedFiles = new ArrayList<>();
 
     for (String value : reportFiles) {
       File reportFile = new File(baseDir, value);
       // only count files that were actually updated during this build
       if ( (buildTime-3000/*error margin*/ <= reportFile.lastModified())) {
-        parsePossiblyEmpty(reportFile);
-        parsed = true;
+        updatedFiles.add(reportFile);
       }
     }
+    parsePossiblyEmpty(updatedFiles);
 
-    if(!parsed) {
+    if(updatedFiles.isEmpty()) {
       long localTime = System.currentTimeMillis();
       if(localTime < buildTime-1000) /*margin*/
         // build time is in the the future. clock on this slave must be running behind
@@ -212,17 +314,17 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    * @throws IOException throws exception when opening result files fails
    */
   public void parse(long buildTime, Iterable<File> reportFiles) throws IOException {
-    boolean parsed=false;
+    List<File> updatedFiles = new ArrayList<>();
 
     for (File reportFile : reportFiles) {
       // only count files that were actually updated during this build
       if ( (buildTime-3000/*error margin*/ <= reportFile.lastModified())) {
-        parsePossiblyEmpty(reportFile);
-        parsed = true;
+        updatedFiles.add(reportFile);
       }
     }
+    parsePossiblyEmpty(updatedFiles);
 
-    if(!parsed) {
+    if(updatedFiles.isEmpty()) {
       long localTime = System.currentTimeMillis();
       if(localTime < buildTime-1000) /*margin*/
         // build time is in the the future. clock on this slave must be running behind
@@ -241,50 +343,87 @@ public final class FlakyTestResult extends MetaTabulatedResult {
 
   }
 
-  private void parsePossiblyEmpty(File reportFile) throws IOException {
-    if(reportFile.length()==0) {
-      // this is a typical problem when JVM quits abnormally, like OutOfMemoryError during a test.
-      FlakySuiteResult sr = new FlakySuiteResult(reportFile.getName(), "", "");
-      sr.addCase(new FlakyCaseResult(sr,"<init>","Test report file "+reportFile.getAbsolutePath()+" was length 0"));
-      add(sr);
-    } else {
-      parse(reportFile);
-    }
-  }
-
-  private void add(FlakySuiteResult sr) {
-    for (FlakySuiteResult s : suites) {
-      // JENKINS-12457: If a testsuite is distributed over multiple files, merge it into a single SuiteResult:
-      if(s.getName().equals(sr.getName())  && nullSafeEq(s.getId(),sr.getId())) {
-
-        // However, a common problem is that people parse TEST-*.xml as well as TESTS-TestSuite.xml.
-        // In that case consider the result file as a duplicate and discard it.
-        // see http://jenkins.361315.n4.nabble.com/Problem-with-duplicate-build-execution-td371616.html for discussion.
-        if(strictEq(s.getTimestamp(),sr.getTimestamp())) {
-          return;
+  private void parsePossiblyEmpty(List<File> reportFiles) throws IOException {
+    new OrderedReportParsing() {
+      @Override
+      Callable<List<FlakySuiteResult>> prepare(final File reportFile) {
+        if(reportFile.length()==0) {
+          // this is a typical problem when JVM quits abnormally, like OutOfMemoryError during a test.
+          FlakySuiteResult sr = new FlakySuiteResult(reportFile.getName(), "", "");
+          sr.addCase(new FlakyCaseResult(sr,"<init>","Test report file "+reportFile.getAbsolutePath()+" was length 0"));
+          return Callables.returning(Collections.singletonList(sr));
+        }
+        final SAXReader reader;
+        try {
+          reader = createReader(reportFile);
+        } catch (final IOException e) {
+          return new Callable<List<FlakySuiteResult>>() {
+            @Override
+            public List<FlakySuiteResult> call() throws IOException {
+              throw e;
+            }
+          };
         }
+        return new Callable<List<FlakySuiteResult>>() {
+          @Override
+          public List<FlakySuiteResult> call() throws IOException {
+            return parse(reportFile, reader);
+          }
+        };
+      }
 
-        for (FlakyCaseResult cr: sr.getCases()) {
-          s.addCase(cr);
-          cr.replaceParent(s);
+      @Override
+      void merge(List<FlakySuiteResult> parsed) {
+        for (FlakySuiteResult sr : parsed) {
+          add(sr);
         }
-        duration += sr.getDuration();
+      }
+    }.run(reportFiles);
+  }
+
+  /*package*/ void add(FlakySuiteResult sr) {
+    // JENKINS-12457: If a testsuite is distributed over multiple files, merge it into a single SuiteResult:
+    FlakySuiteResult s = suitesByNameAndId().get(nameAndId(sr));
+    if (s != null) {
+
+      // However, a common problem is that people parse TEST-*.xml as well as TESTS-TestSuite.xml.
+      // In that case consider the result file as a duplicate and discard it.
+      // see http://jenkins.361315.n4.nabble.com/Problem-with-duplicate-build-execution-td371616.html for discussion.
+      if(strictEq(s.getTimestamp(),sr.getTimestamp())) {
         return;
       }
+
+      for (FlakyCaseResult cr: sr.getCases()) {
+        s.addCase(cr);
+        cr.replaceParent(s);
+      }
+      duration += sr.getDuration();
+      return;
     }
     suites.add(sr);
+    suitesByNameAndId.put(nameAndId(sr), sr);
     duration += sr.getDuration();
   }
 
-  private boolean strictEq(Object lhs, Object rhs) {
-    return lhs != null && rhs != null && lhs.equals(rhs);
+  private Map<List<String>,FlakySuiteResult> suitesByNameAndId() {
+    if (suitesByNameAndId == null) {
+      suitesByNameAndId = new HashMap<List<String>,FlakySuiteResult>();
+      for (FlakySuiteResult s : suites) {
+        // Suites are merged into the first one with the same name and id
+        if (!suitesByNameAndId.containsKey(nameAndId(s))) {
+          suitesByNameAndId.put(nameAndId(s), s);
+        }
+      }
+    }
+    return suitesByNameAndId;
   }
 
-  private boolean nullSafeEq(Object lhs, Object rhs) {
-    if (lhs == null) {
-      return rhs == null;
-    }
-    return lhs.equals(rhs);
+  private static List<String> nameAndId(FlakySuiteResult s) {
+    return Arrays.asList(s.getName(), s.getId());
+  }
+
+  private boolean strictEq(Object lhs, Object rhs) {
+    return lhs != null && rhs != null && lhs.equals(rhs);
   }
 
   /**
@@ -294,11 +433,26 @@ public final class FlakyTestResult extends MetaTabulatedResult {
    * @throws IOException throws exception when opening report file fails
    */
   public void parse(File reportFile) throws IOException {
+    for (FlakySuiteResult suiteResult : parse(reportFile, createReader(reportFile)))
+      add(suiteResult);
+  }
+
+  private static SAXReader createReader(File reportFile) throws IOException {
     try {
-      for (FlakySuiteResult suiteResult : FlakySuiteResult.parse(reportFile, keepLongStdio))
-        add(suiteResult);
+      return FlakySuiteResult.createReader(reportFile);
     } catch (InterruptedException | SAXException | RuntimeException e) {
       throw new IOException("Failed to read "+reportFile,e);
+    }
+  }
+
+  /**
+   * Parses a report file with a reader created by {@link #createReader}, on any thread.
+   */
+  private List<FlakySuiteResult> parse(File reportFile, SAXReader reader) throws IOException {
+    try {
+      return FlakySuiteResult.parse(reportFile, reader, keepLongStdio);
+    } catch (RuntimeException e) {
+      throw new IOException("Failed to read "+reportFile,e);
     } catch (DocumentException e) {
       if (!reportFile.getPath().endsWith(".xml")) {
         throw new IOException("Failed to read "+reportFile+"\n"+
@@ -309,7 +463,90 @@ public final class FlakyTestResult extends MetaTabulatedResult {
         e.printStackTrace(new PrintWriter(writer));
         String error = "Failed to read test report file "+reportFile.getAbsolutePath()+"\n"+writer.toString();
         sr.addCase(new FlakyCaseResult(sr,"<init>",error));
-        add(sr);
+        return Collections.singletonList(sr);
+      }
+    }
+  }
+
+  /**
+   * Parses report files on up to {@link #parsingParallelism} threads, merging the suites of each
+   * file in the order of the files, so they are merged the same way as when the files are parsed
+   * one by one. Only a few files are parsed ahead of the ones merged, to bound the memory held by
+   * suites waiting to be merged.
+   *
+   * <p>The parsing of each file is prepared on the calling thread, as on an agent the
+   * {@link hudson.util.io.ParserConfigurator}s configuring the parser can only be looked up there.
+   */
+  private abstract class OrderedReportParsing {
+
+    /**
+     * Prepare the parsing of a report file, on the calling thread
+     *
+     * @param reportFile the file
+     * @return the parsing, run on any thread
+     */
+    abstract Callable<List<FlakySuiteResult>> prepare(File reportFile);
+
+    /**
+     * Merge the suites of a report file, on the calling thread in the order of the files
+     *
+     * @param parsed the suites returned by the parsing of the file
+     * @throws IOException if the suites can't be merged
+     */
+    abstract void merge(List<FlakySuiteResult> parsed) throws IOException;
+
+    void run(Collection<File> reportFiles) throws IOException {
+      int parallelism = Math.min(parsingParallelism, reportFiles.size());
+      if (parallelism <= 1) {
+        for (File reportFile : reportFiles) {
+          try {
+            merge(prepare(reportFile).call());
+          } catch (IOException | RuntimeException e) {
+            throw e;
+          } catch (Exception e) {
+            throw new IOException("Failed to read "+reportFile,e);
+          }
+        }
+        return;
+      }
+
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+          new NamingThreadFactory(new DaemonThreadFactory(), "Flaky test report parsing"));
+      Deque<Future<List<FlakySuiteResult>>> parsing = new ArrayDeque<>();
+      try {
+        for (File reportFile : reportFiles) {
+          if (parsing.size() >= parallelism * FILES_AHEAD_PER_THREAD) {
+            merge(get(parsing.poll()));
+          }
+          parsing.add(executor.submit(prepare(reportFile)));
+        }
+        while (!parsing.isEmpty()) {
+          merge(get(parsing.poll()));
+        }
+      } finally {
+        // Don't leave files being parsed behind when one of them failed
+        executor.shutdownNow();
+      }
+    }
+
+    private List<FlakySuiteResult> get(Future<List<FlakySuiteResult>> parsed) throws IOException {
+      try {
+        return parsed.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw (IOException) new InterruptedIOException().initCause(e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IOException(cause);
       }
     }
   }
@@ -610,24 +847,26 @@ public final class FlakyTestResult extends MetaTabulatedResult {
 
     Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsWithRevisionMap =
         new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    // All the tests ran at the same revision, so only resolve it once
+    String revision = RevisionResolver.resolveRevision(owner);
 
     for (FlakyCaseResult passedTest : passedTests) {
       testFlakyStatsWithRevisionMap.put(passedTest.getFullDisplayName(),
-          new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, 0, 0), owner));
+          new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, 0, 0), revision));
     }
 
     for (FlakyCaseResult failedTest : failedTests) {
       int flakyRetry = failedTest.getFlakyRuns() == null ? 0 : failedTest.getFlakyRuns().size();
       testFlakyStatsWithRevisionMap.put(failedTest.getFullDisplayName(),
           new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(0, 1 + flakyRetry, 0),
-              owner));
+              revision));
     }
 
     for (FlakyCaseResult flakyTest : flakyTests) {
       int flakyRetry = flakyTest.getFlakyRuns() == null ? 0 : flakyTest.getFlakyRuns().size();
       testFlakyStatsWithRevisionMap.put(flakyTest.getFullDisplayName(),
           new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, flakyRetry, 0),
-              owner));
+              revision));
     }
 
     return testFlakyStatsWithRevisionMap;
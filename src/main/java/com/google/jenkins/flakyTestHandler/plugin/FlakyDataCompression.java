@@ -0,0 +1,174 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of the flaky data stored with builds. Test names, revisions and stack traces repeat
+ * a lot, so the data is deflated with a preset dictionary of the strings they usually share, which
+ * also helps the many small payloads which are too short to build a useful window of their own.
+ *
+ * <p>The dictionary is part of the format: changing it makes the data written before unreadable,
+ * so a new dictionary needs a new format version in the files using it.
+ */
+public final class FlakyDataCompression {
+
+  /**
+   * Strings shared by the flaky data, the most frequent ones last so they are the cheapest to
+   * refer to
+   */
+  private static final byte[] DICTIONARY = (
+      "junit.framework.ComparisonFailure: expected:<"
+      + "java.lang.IllegalStateException"
+      + "java.lang.NullPointerException"
+      + "java.util.concurrent.TimeoutException"
+      + "org.junit.ComparisonFailure: expected:<"
+      + "\tat org.junit.runners.ParentRunner$3.run(ParentRunner.java:"
+      + "\tat org.junit.runners.ParentRunner.runLeaf(ParentRunner.java:"
+      + "\tat org.junit.runners.BlockJUnit4ClassRunner.runChild(BlockJUnit4ClassRunner.java:"
+      + "\tat org.junit.internal.runners.statements.InvokeMethod.evaluate(InvokeMethod.java:"
+      + "\tat org.junit.runners.model.FrameworkMethod$1.runReflectiveCall(FrameworkMethod.java:"
+      + "\tat org.apache.maven.surefire.junit4.JUnit4Provider.execute(JUnit4Provider.java:"
+      + "\tat sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)\n"
+      + "\tat sun.reflect.NativeMethodAccessorImpl.invoke(NativeMethodAccessorImpl.java:"
+      + "\tat sun.reflect.DelegatingMethodAccessorImpl.invoke(DelegatingMethodAccessorImpl.java:"
+      + "\tat java.lang.reflect.Method.invoke(Method.java:"
+      + "java.lang.AssertionError: expected:<"
+      + "junit.framework.AssertionFailedError: "
+      + "java.lang.AssertionError: "
+      + "> but was:<"
+      + "Test.java:"
+      + "\tat org.junit.Assert.fail(Assert.java:"
+      + "\tat org.junit.Assert.assertEquals(Assert.java:"
+      + "\tat org.junit.Assert.assertTrue(Assert.java:"
+      + "com.google."
+      + ".test"
+      + ")\n\tat ").getBytes(StandardCharsets.UTF_8);
+
+  private FlakyDataCompression() {
+  }
+
+  /**
+   * Compress what is written to a stream. Closing the returned stream closes the given one.
+   *
+   * @param out the stream to write the compressed data to
+   * @return the stream to write the data to
+   */
+  public static OutputStream compress(OutputStream out) {
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setDictionary(DICTIONARY);
+    return new DeflaterOutputStream(out, deflater, 8192) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * Decompress a stream as it is read. Closing the returned stream closes the given one.
+   *
+   * @param in the stream to read the compressed data from
+   * @return the stream to read the data from
+   */
+  public static InputStream decompress(InputStream in) {
+    final Inflater inflater = new Inflater(true);
+    inflater.setDictionary(DICTIONARY);
+    return new InflaterInputStream(in, inflater, 8192) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * Compress a few strings into one payload
+   *
+   * @param values the strings, possibly null
+   * @return the compressed payload
+   */
+  public static byte[] compressStrings(String... values) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream out = new DataOutputStream(compress(bytes));
+      try {
+        for (String value : values) {
+          out.writeBoolean(value != null);
+          if (value != null) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+          }
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      // Not thrown when writing to memory
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decompress one of the strings of a payload. Only the payload up to that string is inflated.
+   *
+   * @param payload payload written by {@link #compressStrings}
+   * @param index index of the string in the payload
+   * @return the string, possibly null
+   * @throws IOException if the payload is corrupt
+   */
+  public static String decompressString(byte[] payload, int index) throws IOException {
+    DataInputStream in = new DataInputStream(decompress(new ByteArrayInputStream(payload)));
+    try {
+      for (int i = 0; i < index; i++) {
+        if (in.readBoolean()) {
+          ByteStreams.skipFully(in, in.readInt());
+        }
+      }
+      if (!in.readBoolean()) {
+        return null;
+      }
+      byte[] utf8 = new byte[in.readInt()];
+      in.readFully(utf8);
+      return new String(utf8, StandardCharsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+}
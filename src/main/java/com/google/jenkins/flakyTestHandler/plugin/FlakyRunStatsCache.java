@@ -0,0 +1,138 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import java.util.Map;
+
+/**
+ * Controller-wide cache of the {@link FlakyRunStats} loaded from disk, bounded by their estimated
+ * size in memory. The least recently used stats are evicted first, and are read from disk again
+ * the next time they are needed.
+ */
+final class FlakyRunStatsCache {
+
+  static final int DEFAULT_SIZE_MB = 64;
+
+  /**
+   * Estimated size of the stats object and its map
+   */
+  private static final int STATS_BYTES = 64;
+
+  /**
+   * Estimated size of one test in the stats, besides the characters of its name
+   */
+  private static final int TEST_BYTES = 112;
+
+  private static final Weigher<FlakyTestResultAction, FlakyRunStats> WEIGHER =
+      new Weigher<FlakyTestResultAction, FlakyRunStats>() {
+        @Override
+        public int weigh(FlakyTestResultAction action, FlakyRunStats stats) {
+          return estimateSize(stats);
+        }
+      };
+
+  private static volatile Cache<FlakyTestResultAction, FlakyRunStats> cache =
+      createCache(DEFAULT_SIZE_MB);
+
+  private static int maximumSizeMb = DEFAULT_SIZE_MB;
+
+  /**
+   * Stats of the caches replaced since startup
+   */
+  private static CacheStats replacedStats = new CacheStats(0, 0, 0, 0, 0, 0);
+
+  private FlakyRunStatsCache() {
+  }
+
+  /**
+   * Get the cached stats of a build
+   *
+   * @param action the action holding the stats of the build
+   * @return the stats, or null if they aren't cached
+   */
+  static FlakyRunStats get(FlakyTestResultAction action) {
+    return cache.getIfPresent(action);
+  }
+
+  static void put(FlakyTestResultAction action, FlakyRunStats stats) {
+    cache.put(action, stats);
+  }
+
+  /**
+   * Change the size of the cache, keeping the most recently used stats which fit in it
+   *
+   * @param sizeMb estimated size of the cached stats in MB
+   */
+  static synchronized void setMaximumSize(int sizeMb) {
+    if (sizeMb == maximumSizeMb) {
+      return;
+    }
+    Cache<FlakyTestResultAction, FlakyRunStats> replacement = createCache(sizeMb);
+    replacement.putAll(cache.asMap());
+    replacedStats = replacedStats.plus(cache.stats());
+    cache = replacement;
+    maximumSizeMb = sizeMb;
+  }
+
+  /**
+   * Get the hit, miss and eviction counts since startup
+   *
+   * @return the stats of the cache
+   */
+  static synchronized CacheStats stats() {
+    return replacedStats.plus(cache.stats());
+  }
+
+  /**
+   * Get the estimated size of the cached stats
+   *
+   * @return the size in bytes
+   */
+  static synchronized long size() {
+    long size = 0;
+    for (FlakyRunStats stats : cache.asMap().values()) {
+      size += estimateSize(stats);
+    }
+    return size;
+  }
+
+  private static Cache<FlakyTestResultAction, FlakyRunStats> createCache(int sizeMb) {
+    // Actions are compared by identity, and their stats are dropped once the build is unloaded
+    return CacheBuilder.newBuilder()
+        .weakKeys()
+        .maximumWeight(Math.max(1, sizeMb) * 1024L * 1024L)
+        .weigher(WEIGHER)
+        .recordStats()
+        .build();
+  }
+
+  static int estimateSize(FlakyRunStats stats) {
+    Map<String, SingleTestFlakyStatsWithRevision> tests = stats.getTestFlakyStatsWithRevisionMap();
+    long size = STATS_BYTES;
+    if (tests != null) {
+      for (String testName : tests.keySet()) {
+        size += TEST_BYTES + 2L * testName.length();
+      }
+    }
+    return (int) Math.min(Integer.MAX_VALUE, size);
+  }
+}
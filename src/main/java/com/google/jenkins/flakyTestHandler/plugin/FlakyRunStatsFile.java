@@ -0,0 +1,234 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file holding the {@link FlakyRunStats} of one build. Revisions and test classes are
+ * written once in a table at the start of the file, and each test only refers to them by index
+ * next to its method name and varint-encoded counts, so the file stays small for large suites.
+ * Everything after the version is compressed with {@link FlakyDataCompression}.
+ */
+final class FlakyRunStatsFile {
+
+  static final String FILE_NAME = "junitFlakyStats.bin";
+
+  private static final int MAGIC = 0x46545253;
+
+  /**
+   * Version of the files written, the body of version 1 files isn't compressed
+   */
+  private static final int VERSION = 2;
+
+  private FlakyRunStatsFile() {
+  }
+
+  /**
+   * Write the stats of a build, replacing the file atomically. Each call writes its own temporary
+   * file, so concurrent writers of the same build don't clobber each other.
+   *
+   * @param file the file to write
+   * @param stats the stats of the build
+   */
+  static void write(File file, FlakyRunStats stats) throws IOException {
+    Map<String, SingleTestFlakyStatsWithRevision> tests = stats.getTestFlakyStatsWithRevisionMap();
+    Map<String, Integer> revisions = new LinkedHashMap<String, Integer>();
+    Map<String, Integer> classes = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : tests.entrySet()) {
+      index(revisions, entry.getValue().getRevision());
+      index(classes, getClassName(entry.getKey()));
+    }
+
+    Path tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+        file.getName(), ".tmp");
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out = new DataOutputStream(
+            new BufferedOutputStream(FlakyDataCompression.compress(out)));
+        writeTable(out, revisions);
+        writeTable(out, classes);
+        writeVarInt(out, tests.size());
+        for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : tests.entrySet()) {
+          String className = getClassName(entry.getKey());
+          SingleTestFlakyStats testStats = entry.getValue().getStats();
+          writeVarInt(out, classes.get(className));
+          writeString(out, entry.getKey().substring(className.length()));
+          writeVarInt(out, revisions.get(entry.getValue().getRevision()));
+          writeVarInt(out, testStats.getPass());
+          writeVarInt(out, testStats.getFail());
+          writeVarInt(out, testStats.getFlake());
+        }
+      } finally {
+        out.close();
+      }
+      force(tmp);
+      Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static void force(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Read the stats of a build
+   *
+   * @param file the file to read
+   * @return the stats of the build
+   * @throws IOException if the file can't be read or isn't in this format
+   */
+  static FlakyRunStats read(File file) throws IOException {
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a flaky stats file");
+      }
+      int version = in.readInt();
+      if (version == VERSION) {
+        in = new DataInputStream(new BufferedInputStream(FlakyDataCompression.decompress(in)));
+      } else if (version != 1) {
+        throw new IOException("Unsupported flaky stats file version " + version);
+      }
+      List<String> revisions = readTable(in);
+      List<String> classes = readTable(in);
+      int testCount = readVarInt(in);
+      Map<String, SingleTestFlakyStatsWithRevision> tests =
+          new HashMap<String, SingleTestFlakyStatsWithRevision>(testCount * 4 / 3 + 1);
+      for (int i = 0; i < testCount; i++) {
+        String className = get(classes, readVarInt(in));
+        String testName = className + readString(in);
+        String revision = get(revisions, readVarInt(in));
+        SingleTestFlakyStats testStats =
+            new SingleTestFlakyStats(readVarInt(in), readVarInt(in), readVarInt(in));
+        tests.put(testName, new SingleTestFlakyStatsWithRevision(testStats, revision));
+      }
+      return new FlakyRunStats(tests);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Get the class part of a test name, including the trailing dot
+   */
+  private static String getClassName(String testName) {
+    return testName.substring(0, testName.lastIndexOf('.') + 1);
+  }
+
+  private static void index(Map<String, Integer> table, String value) {
+    if (!table.containsKey(value)) {
+      table.put(value, table.size());
+    }
+  }
+
+  private static String get(List<String> table, int index) throws IOException {
+    if (index >= table.size()) {
+      throw new IOException("Unknown string " + index);
+    }
+    return table.get(index);
+  }
+
+  private static void writeTable(DataOutputStream out, Map<String, Integer> table)
+      throws IOException {
+    writeVarInt(out, table.size());
+    for (String value : table.keySet()) {
+      writeString(out, value);
+    }
+  }
+
+  private static List<String> readTable(DataInputStream in) throws IOException {
+    int size = readVarInt(in);
+    List<String> table = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      table.add(readString(in));
+    }
+    return table;
+  }
+
+  /**
+   * Write a string as its varint length followed by its UTF-8 bytes, unlike
+   * {@link DataOutputStream#writeUTF} it isn't limited to 64 KB
+   */
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, utf8.length);
+    out.write(utf8);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    int length = readVarInt(in);
+    if (length < 0) {
+      throw new IOException("Malformed string length " + length);
+    }
+    byte[] utf8 = new byte[length];
+    in.readFully(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+
+  static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+}
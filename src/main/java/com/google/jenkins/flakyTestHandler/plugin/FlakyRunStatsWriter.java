@@ -0,0 +1,117 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Writes the {@link FlakyRunStats} of builds to disk in the background, so the build doesn't wait
+ * for large stats to be serialized. Until the write completes, the stats are read from memory. A
+ * build waits for its stats to be written before it completes, and all pending writes are flushed
+ * on shutdown.
+ */
+public final class FlakyRunStatsWriter {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyRunStatsWriter.class.getName());
+
+  private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+      new NamingThreadFactory(new DaemonThreadFactory(), "Flaky stats writer"));
+
+  private FlakyRunStatsWriter() {
+  }
+
+  /**
+   * Write the stats of a build in the background
+   *
+   * @param action the action the stats belong to, told once they are written
+   * @param file the file to write the stats to
+   * @param stats the stats to write
+   * @return the pending write
+   */
+  static Future<?> write(final FlakyTestResultAction action, final File file,
+      final FlakyRunStats stats) {
+    Callable<Void> write = new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        try {
+          FlakyRunStatsFile.write(file, stats);
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to write flaky stats to " + file, e);
+          throw e;
+        }
+        action.onSaved(stats);
+        return null;
+      }
+    };
+    try {
+      return EXECUTOR.submit(write);
+    } catch (RejectedExecutionException e) {
+      // Shutting down, write on the calling thread
+      FutureTask<Void> task = new FutureTask<Void>(write);
+      task.run();
+      return task;
+    }
+  }
+
+  /**
+   * Write the stats still pending before the controller stops
+   */
+  @Terminator
+  public static void flush() throws InterruptedException {
+    EXECUTOR.shutdown();
+    if (!EXECUTOR.awaitTermination(1, TimeUnit.MINUTES)) {
+      LOGGER.log(Level.WARNING, "Timed out writing the pending flaky stats");
+    }
+  }
+
+  /**
+   * Waits for the stats of a build to be written before the build completes
+   */
+  @Extension
+  public static class RunListenerImpl extends RunListener<Run> {
+
+    @Override
+    public void onCompleted(Run run, TaskListener listener) {
+      for (FlakyTestResultAction action : run.getActions(FlakyTestResultAction.class)) {
+        try {
+          action.waitUntilSaved(listener);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+}
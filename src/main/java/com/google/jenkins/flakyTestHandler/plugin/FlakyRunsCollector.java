@@ -0,0 +1,108 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+import com.google.jenkins.flakyTestHandler.junit.FlakyRunScanner;
+import com.google.jenkins.flakyTestHandler.junit.FlakyStdioStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Collects the reruns of the tests of report files on the agent, leaving the test results to the
+ * ones the junit plugin already parsed
+ */
+public class FlakyRunsCollector extends
+    MasterToSlaveCallable<HashMap<String, List<FlakyRunInformation>>, InterruptedException> {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyRunsCollector.class.getName());
+
+  private final List<String> reportFiles;
+
+  private final String stdioFile;
+
+  private final String stdioName;
+
+  /**
+   * @param reportFiles paths of the report files on the agent
+   */
+  public FlakyRunsCollector(List<String> reportFiles) {
+    this(reportFiles, null, null);
+  }
+
+  /**
+   * @param reportFiles paths of the report files on the agent
+   * @param stdioFile path of the file on the agent to store the stdout and stderr of the reruns
+   *     in, or null to keep them in the reruns
+   * @param stdioName name of the file once archived in the build directory
+   */
+  public FlakyRunsCollector(List<String> reportFiles, String stdioFile, String stdioName) {
+    this.reportFiles = reportFiles;
+    this.stdioFile = stdioFile;
+    this.stdioName = stdioName;
+  }
+
+  @Override
+  public HashMap<String, List<FlakyRunInformation>> call() throws InterruptedException {
+    HashMap<String, List<FlakyRunInformation>> flakyRuns =
+        new HashMap<String, List<FlakyRunInformation>>();
+    FlakyStdioStore stdioStore = null;
+    if (stdioFile != null) {
+      try {
+        stdioStore = new FlakyStdioStore(new File(stdioFile), stdioName);
+      } catch (IOException e) {
+        // The output of the reruns is then kept in the reruns
+        LOGGER.log(Level.WARNING, "Failed to create " + stdioFile, e);
+      }
+    }
+    try {
+      for (String reportFile : reportFiles) {
+        try {
+          // A test may be rerun in several reports, so keep the reruns of all of them
+          for (Map.Entry<String, List<FlakyRunInformation>> entry :
+              FlakyRunScanner.scan(new File(reportFile), stdioStore).entrySet()) {
+            List<FlakyRunInformation> runs = flakyRuns.get(entry.getKey());
+            if (runs == null) {
+              flakyRuns.put(entry.getKey(), entry.getValue());
+            } else {
+              runs.addAll(entry.getValue());
+            }
+          }
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to collect the reruns of " + reportFile, e);
+        }
+      }
+    } finally {
+      if (stdioStore != null) {
+        try {
+          stdioStore.close();
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to write " + stdioFile, e);
+        }
+      }
+    }
+    return flakyRuns;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
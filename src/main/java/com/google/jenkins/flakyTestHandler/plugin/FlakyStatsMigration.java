@@ -0,0 +1,439 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractProject;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Converts the flaky stats of all the builds from the legacy XML file to {@link FlakyRunStatsFile}.
+ * Jobs are converted on a bounded thread pool, and reading the legacy files is throttled so the
+ * migration doesn't starve the builds of disk bandwidth. Each job converted without failures is
+ * recorded in a checkpoint file, and a migration interrupted by a restart resumes from it at
+ * startup. A cancelled migration keeps its checkpoint too, and resumes from it when started
+ * again.
+ */
+@Extension
+public class FlakyStatsMigration extends ManagementLink {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyStatsMigration.class.getName());
+
+  /**
+   * Maximal number of jobs converted at the same time
+   */
+  static final int THREADS =
+      Math.max(1, SystemProperties.getInteger(FlakyStatsMigration.class.getName() + ".threads",
+          2));
+
+  /**
+   * Maximal rate the legacy files are read at
+   */
+  static final int MAX_KB_PER_SECOND = Math.max(1,
+      SystemProperties.getInteger(FlakyStatsMigration.class.getName() + ".maxKbPerSecond",
+          10 * 1024));
+
+  /**
+   * File in the Jenkins home listing the jobs converted by the current migration
+   */
+  static final String CHECKPOINT_FILE_NAME = "flakyStatsMigration.checkpoint";
+
+  /**
+   * File in the Jenkins home marking the current migration as cancelled, so it isn't resumed at
+   * startup
+   */
+  static final String CANCELLED_FILE_NAME = "flakyStatsMigration.cancelled";
+
+  /**
+   * The running or last migration, null if none was started since startup
+   */
+  private volatile Migration migration;
+
+  @Override
+  public String getIconFileName() {
+    return "gear.png";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return "Flaky Stats Migration";
+  }
+
+  @Override
+  public String getDescription() {
+    return "Convert the flaky stats of older builds to the compact storage format.";
+  }
+
+  @Override
+  public String getUrlName() {
+    return "flakyStatsMigration";
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.TOOLS;
+  }
+
+  @Override
+  public Permission getRequiredPermission() {
+    return Jenkins.ADMINISTER;
+  }
+
+  public Migration getMigration() {
+    return migration;
+  }
+
+  public boolean isRunning() {
+    Migration current = migration;
+    return current != null && !current.isFinished();
+  }
+
+  File getCheckpointFile() {
+    return new File(Jenkins.get().getRootDir(), CHECKPOINT_FILE_NAME);
+  }
+
+  File getCancelledFile() {
+    return new File(Jenkins.get().getRootDir(), CANCELLED_FILE_NAME);
+  }
+
+  /**
+   * Start the migration, or resume it from the checkpoint of an interrupted one
+   */
+  synchronized void start() throws IOException {
+    if (isRunning()) {
+      return;
+    }
+    File checkpoint = getCheckpointFile();
+    Set<String> convertedJobs = new HashSet<String>();
+    if (checkpoint.exists()) {
+      convertedJobs.addAll(Files.readAllLines(checkpoint.toPath(), StandardCharsets.UTF_8));
+    } else {
+      Files.createFile(checkpoint.toPath());
+    }
+    Files.deleteIfExists(getCancelledFile().toPath());
+    migration = new Migration(checkpoint, convertedJobs);
+    migration.start();
+  }
+
+  @RequirePOST
+  public HttpResponse doStart() throws IOException {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    start();
+    return HttpResponses.redirectToDot();
+  }
+
+  /**
+   * Stop the migration, the next one resumes from the jobs it didn't convert
+   */
+  @RequirePOST
+  public HttpResponse doCancel() throws IOException {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    Migration current = migration;
+    if (current != null) {
+      if (getCheckpointFile().exists()) {
+        Files.write(getCancelledFile().toPath(), new byte[0]);
+      }
+      current.cancel();
+    }
+    return HttpResponses.redirectToDot();
+  }
+
+  /**
+   * Resume a migration interrupted by a restart, unless it was cancelled
+   */
+  @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+  public static void resume() throws IOException {
+    FlakyStatsMigration link = ExtensionList.lookupSingleton(FlakyStatsMigration.class);
+    if (link.getCheckpointFile().exists() && !link.getCancelledFile().exists()) {
+      LOGGER.log(Level.INFO, "Resuming the migration of the flaky stats");
+      link.start();
+    }
+  }
+
+  /**
+   * Convert the legacy stats file of one build, if it has one
+   *
+   * @param buildDir the directory of the build
+   * @param limiter limiter of the KB read per second
+   * @return the size of the converted file, or -1 if the build had nothing to convert
+   * @throws IOException if the legacy file can't be converted
+   */
+  static long convert(File buildDir, RateLimiter limiter) throws IOException {
+    File legacyFile = new File(buildDir, FlakyTestResultAction.LEGACY_FILE_NAME);
+    File statsFile = new File(buildDir, FlakyRunStatsFile.FILE_NAME);
+    if (!legacyFile.exists() || statsFile.exists()) {
+      return -1;
+    }
+    long length = legacyFile.length();
+    limiter.acquire((int) Math.max(1, Math.min(Integer.MAX_VALUE, length / 1024)));
+
+    FlakyRunStats stats =
+        (FlakyRunStats) new XmlFile(FlakyTestResultAction.XSTREAM, legacyFile).read();
+    if (stats.getTestFlakyStatsWithRevisionMap() == null) {
+      // Too old to hold any stats
+      return -1;
+    }
+    // The legacy file is kept, it is still read if the converted one can't be
+    FlakyRunStatsFile.write(statsFile, stats);
+    return length;
+  }
+
+  /**
+   * One run of the migration over all the jobs
+   */
+  public final class Migration implements Runnable {
+
+    private final File checkpoint;
+
+    private final Set<String> convertedJobs;
+
+    private final RateLimiter limiter = RateLimiter.create(MAX_KB_PER_SECOND);
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+        new NamingThreadFactory(new DaemonThreadFactory(), "Flaky stats migration"));
+
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile int totalJobs;
+
+    private volatile long totalBuilds;
+
+    private final AtomicInteger doneJobs = new AtomicInteger();
+
+    private final AtomicLong doneBuilds = new AtomicLong();
+
+    private final AtomicLong convertedBuilds = new AtomicLong();
+
+    private final AtomicLong failedBuilds = new AtomicLong();
+
+    private final AtomicLong convertedBytes = new AtomicLong();
+
+    private volatile boolean cancelled;
+
+    private volatile boolean finished;
+
+    private volatile long endTime;
+
+    Migration(File checkpoint, Set<String> convertedJobs) {
+      this.checkpoint = checkpoint;
+      this.convertedJobs = convertedJobs;
+    }
+
+    void start() {
+      new NamingThreadFactory(new DaemonThreadFactory(), "Flaky stats migration coordinator")
+          .newThread(this).start();
+    }
+
+    void cancel() {
+      cancelled = true;
+      executor.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+      List<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>();
+      long builds = 0;
+      for (AbstractProject<?, ?> project : Jenkins.get().allItems(AbstractProject.class)) {
+        if (!convertedJobs.contains(project.getFullName())) {
+          projects.add(project);
+          builds += project._getRuns().keySet().size();
+        }
+      }
+      totalJobs = projects.size();
+      totalBuilds = builds;
+      LOGGER.log(Level.INFO, "Migrating the flaky stats of {0} builds in {1} jobs",
+          new Object[] {builds, projects.size()});
+
+      try {
+        for (final AbstractProject<?, ?> project : projects) {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              convertJob(project);
+            }
+          });
+        }
+        executor.shutdown();
+      } catch (RejectedExecutionException e) {
+        // Cancelled while queueing the jobs
+      }
+      try {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          LOGGER.log(Level.FINE, "Migrated the flaky stats of {0} out of {1} builds",
+              new Object[] {doneBuilds.get(), totalBuilds});
+        }
+      } catch (InterruptedException e) {
+        cancel();
+        Thread.currentThread().interrupt();
+      }
+
+      if (cancelled) {
+        // The checkpoint is kept for the next migration to resume from
+        LOGGER.log(Level.INFO, "Cancelled the migration of the flaky stats");
+      } else {
+        LOGGER.log(Level.INFO, "Migrated the flaky stats of {0} builds in {1} ms, {2} failed",
+            new Object[] {convertedBuilds.get(), System.currentTimeMillis() - startTime,
+                failedBuilds.get()});
+        if (!checkpoint.delete()) {
+          LOGGER.log(Level.WARNING, "Failed to delete " + checkpoint);
+        }
+      }
+      endTime = System.currentTimeMillis();
+      finished = true;
+    }
+
+    private void convertJob(AbstractProject<?, ?> project) {
+      int failures = 0;
+      for (int buildNumber : project._getRuns().keySet()) {
+        if (cancelled) {
+          return;
+        }
+        File buildDir = new File(project.getBuildDir(), String.valueOf(buildNumber));
+        try {
+          long length = convert(buildDir, limiter);
+          if (length >= 0) {
+            convertedBuilds.incrementAndGet();
+            convertedBytes.addAndGet(length);
+          }
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to migrate the flaky stats of " + buildDir, e);
+          failedBuilds.incrementAndGet();
+          failures++;
+        }
+        doneBuilds.incrementAndGet();
+      }
+      doneJobs.incrementAndGet();
+      // A job with failed builds is converted again by the next migration, which skips the builds
+      // already converted
+      if (failures == 0) {
+        checkpoint(project.getFullName());
+      }
+    }
+
+    private synchronized void checkpoint(String jobName) {
+      try {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(checkpoint, true),
+            StandardCharsets.UTF_8);
+        try {
+          writer.write(jobName + "\n");
+        } finally {
+          writer.close();
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to record the migration of " + jobName, e);
+      }
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    public boolean isFinished() {
+      return finished;
+    }
+
+    public int getTotalJobs() {
+      return totalJobs;
+    }
+
+    public int getDoneJobs() {
+      return doneJobs.get();
+    }
+
+    public long getTotalBuilds() {
+      return totalBuilds;
+    }
+
+    public long getDoneBuilds() {
+      return doneBuilds.get();
+    }
+
+    public long getConvertedBuilds() {
+      return convertedBuilds.get();
+    }
+
+    public long getFailedBuilds() {
+      return failedBuilds.get();
+    }
+
+    /**
+     * Get the number of builds scanned per second
+     */
+    public double getBuildsPerSecond() {
+      long elapsed = (finished ? endTime : System.currentTimeMillis()) - startTime;
+      return elapsed <= 0 ? 0 : doneBuilds.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Get the number of KB of legacy files converted per second
+     */
+    public double getKbPerSecond() {
+      long elapsed = (finished ? endTime : System.currentTimeMillis()) - startTime;
+      return elapsed <= 0 ? 0 : convertedBytes.get() / 1024.0 * 1000.0 / elapsed;
+    }
+
+    /**
+     * Get the estimated time left, from the rate builds were scanned at so far
+     *
+     * @return the time left in seconds, or -1 if it can't be estimated yet
+     */
+    public long getEtaSeconds() {
+      double rate = getBuildsPerSecond();
+      if (finished) {
+        return 0;
+      }
+      if (rate <= 0) {
+        return -1;
+      }
+      return (long) ((totalBuilds - doneBuilds.get()) / rate);
+    }
+  }
+}
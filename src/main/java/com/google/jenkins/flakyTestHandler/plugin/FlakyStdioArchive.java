@@ -0,0 +1,120 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyStdioStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.slaves.WorkspaceList;
+
+/**
+ * File of a {@link FlakyStdioStore}, written next to the workspace where the reports are parsed
+ * and then archived into the build directory, which the stored test output is read from.
+ */
+final class FlakyStdioArchive {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyStdioArchive.class.getName());
+
+  /**
+   * File the store is written to, where the reports are parsed
+   */
+  private final FilePath tempFile;
+
+  /**
+   * File the store is archived to, in the build directory
+   */
+  private final File file;
+
+  private FlakyStdioArchive(FilePath tempFile, File file) {
+    this.tempFile = tempFile;
+    this.file = file;
+  }
+
+  /**
+   * Create the files of a store for the output of the tests of a build
+   *
+   * @param run the build
+   * @param workspace the workspace of the build, possibly null
+   * @return the files, or null if there is no workspace to write the store next to
+   */
+  static FlakyStdioArchive create(Run<?, ?> run, FilePath workspace)
+      throws IOException, InterruptedException {
+    FilePath tempDir = workspace == null ? null : WorkspaceList.tempDir(workspace);
+    if (tempDir == null) {
+      return null;
+    }
+    tempDir.mkdirs();
+    // Creating the file reserves its name, as a build may collect the output of several reports
+    File file = File.createTempFile(FlakyStdioStore.FILE_PREFIX, FlakyStdioStore.FILE_SUFFIX,
+        run.getRootDir());
+    try {
+      return new FlakyStdioArchive(
+          tempDir.createTempFile(FlakyStdioStore.FILE_PREFIX, FlakyStdioStore.FILE_SUFFIX), file);
+    } catch (IOException | InterruptedException e) {
+      if (!file.delete()) {
+        LOGGER.log(Level.WARNING, "Failed to delete " + file);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return the path of the file to write the store to, where the reports are parsed
+   */
+  String getRemotePath() {
+    return tempFile.getRemote();
+  }
+
+  /**
+   * @return the name of the file in the build directory, which the stored output refers to
+   */
+  String getName() {
+    return file.getName();
+  }
+
+  /**
+   * Archive the written store into the build directory, or delete it if no test had any output
+   */
+  void archive() throws IOException, InterruptedException {
+    if (tempFile.length() == 0) {
+      discard();
+      return;
+    }
+    try {
+      tempFile.copyTo(new FilePath(file));
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * Delete the store, when its output isn't kept
+   */
+  void discard() throws IOException, InterruptedException {
+    try {
+      tempFile.delete();
+    } finally {
+      if (file.exists() && !file.delete()) {
+        LOGGER.log(Level.WARNING, "Failed to delete " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.cache.CacheStats;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Global settings of the flaky test handler
+ */
+@Extension
+@Symbol("flakyTestHandler")
+public class FlakyTestHandlerConfiguration extends GlobalConfiguration {
+
+  /**
+   * Maximal number of threads used to read build stats when the flaky history of a job has to be
+   * aggregated from all its builds
+   */
+  private int historyAggregationParallelism = 1;
+
+  /**
+   * Maximal number of builds aggregated into the flaky history of a job, or 0 for no limit
+   */
+  private int historyWindowBuilds;
+
+  /**
+   * Maximal age in days of the builds aggregated into the flaky history of a job, relative to its
+   * newest build, or 0 for no limit
+   */
+  private int historyWindowDays;
+
+  /**
+   * Estimated size in MB of the per-build flaky stats kept in memory
+   */
+  private int flakyRunStatsCacheSize = FlakyRunStatsCache.DEFAULT_SIZE_MB;
+
+  public FlakyTestHandlerConfiguration() {
+    load();
+    FlakyRunStatsCache.setMaximumSize(flakyRunStatsCacheSize);
+  }
+
+  public static FlakyTestHandlerConfiguration get() {
+    return ExtensionList.lookupSingleton(FlakyTestHandlerConfiguration.class);
+  }
+
+  public int getHistoryAggregationParallelism() {
+    return historyAggregationParallelism;
+  }
+
+  @DataBoundSetter
+  public void setHistoryAggregationParallelism(int historyAggregationParallelism) {
+    this.historyAggregationParallelism = Math.max(1, historyAggregationParallelism);
+    save();
+  }
+
+  public int getHistoryWindowBuilds() {
+    return historyWindowBuilds;
+  }
+
+  @DataBoundSetter
+  public void setHistoryWindowBuilds(int historyWindowBuilds) {
+    historyWindowBuilds = Math.max(0, historyWindowBuilds);
+    if (this.historyWindowBuilds != historyWindowBuilds) {
+      this.historyWindowBuilds = historyWindowBuilds;
+      save();
+      FlakyTestHistoryIndex.reaggregateAll();
+    }
+  }
+
+  public int getHistoryWindowDays() {
+    return historyWindowDays;
+  }
+
+  @DataBoundSetter
+  public void setHistoryWindowDays(int historyWindowDays) {
+    historyWindowDays = Math.max(0, historyWindowDays);
+    if (this.historyWindowDays != historyWindowDays) {
+      this.historyWindowDays = historyWindowDays;
+      save();
+      FlakyTestHistoryIndex.reaggregateAll();
+    }
+  }
+
+  public int getFlakyRunStatsCacheSize() {
+    return flakyRunStatsCacheSize;
+  }
+
+  @DataBoundSetter
+  public void setFlakyRunStatsCacheSize(int flakyRunStatsCacheSize) {
+    this.flakyRunStatsCacheSize = Math.max(1, flakyRunStatsCacheSize);
+    FlakyRunStatsCache.setMaximumSize(this.flakyRunStatsCacheSize);
+    save();
+  }
+
+  /**
+   * Get the hit, miss and eviction counts of the per-build flaky stats cache since startup
+   *
+   * @return the stats of the cache
+   */
+  public CacheStats getFlakyRunStatsCacheStats() {
+    return FlakyRunStatsCache.stats();
+  }
+
+  /**
+   * Get the estimated size of the per-build flaky stats kept in memory
+   *
+   * @return the size in MB
+   */
+  public long getFlakyRunStatsCacheUsage() {
+    return FlakyRunStatsCache.size() / (1024 * 1024);
+  }
+
+  /**
+   * Get an empty flaky history with the configured window
+   *
+   * @return the empty history
+   */
+  FlakyTestHistorySnapshot createEmptyHistory() {
+    return FlakyTestHistorySnapshot.empty(historyWindowBuilds, historyWindowDays);
+  }
+}
@@ -0,0 +1,194 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.base.Function;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistorySnapshot.BuildStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+import hudson.model.Run;
+
+/**
+ * Aggregates the flaky stats of many builds into a {@link FlakyTestHistorySnapshot}. Reading the
+ * stats of each build is the expensive part, so ranges of builds can be aggregated on a bounded
+ * fork-join pool and merged back in build order with
+ * {@link FlakyTestHistorySnapshot.Builder#merge}.
+ */
+final class FlakyTestHistoryAggregator {
+
+  /**
+   * Ranges with at most this many builds are aggregated by a single task
+   */
+  static final int BUILDS_PER_TASK = 16;
+
+  /**
+   * Function to read the flaky stats of a build from its stats file
+   */
+  static final Function<Run<?, ?>, BuildStats> RUN_TO_BUILD_STATS =
+      new Function<Run<?, ?>, BuildStats>() {
+        @Override
+        public BuildStats apply(Run<?, ?> build) {
+          Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap =
+              HistoryAggregatedFlakyTestResultAction.getTestFlakyStatsMap(build);
+          if (testFlakyStatsMap == null) {
+            return null;
+          }
+          return new BuildStats(build.getNumber(),
+              HistoryAggregatedFlakyTestResultAction.isDeflakeBuild(build),
+              build.getTimeInMillis(), testFlakyStatsMap);
+        }
+      };
+
+  private FlakyTestHistoryAggregator() {
+  }
+
+  /**
+   * Aggregate builds with the window and parallelism configured in
+   * {@link FlakyTestHandlerConfiguration}
+   *
+   * @param builds the builds to aggregate, from the oldest one to the newest one
+   * @return the aggregated history
+   */
+  static FlakyTestHistorySnapshot aggregate(List<? extends Run<?, ?>> builds) {
+    return aggregate(builds, RUN_TO_BUILD_STATS);
+  }
+
+  /**
+   * Aggregate builds with the window and parallelism configured in
+   * {@link FlakyTestHandlerConfiguration}, reading their stats with the given function
+   *
+   * @param builds the builds to aggregate, from the oldest one to the newest one
+   * @param reader function reading the stats of a build, or returning null if it has none
+   * @return the aggregated history
+   */
+  static <T> FlakyTestHistorySnapshot aggregate(List<? extends T> builds,
+      Function<? super T, BuildStats> reader) {
+    FlakyTestHandlerConfiguration configuration = FlakyTestHandlerConfiguration.get();
+    return aggregate(builds, reader, configuration.createEmptyHistory(),
+        configuration.getHistoryAggregationParallelism());
+  }
+
+  /**
+   * Aggregate builds, reading their stats on up to the given number of threads
+   *
+   * @param builds the builds to aggregate, from the oldest one to the newest one
+   * @param empty the empty history to aggregate into, which defines the window of the history
+   * @param parallelism maximal number of threads to use, or 1 to aggregate on the calling thread
+   * @return the aggregated history
+   */
+  static FlakyTestHistorySnapshot aggregate(List<? extends Run<?, ?>> builds,
+      FlakyTestHistorySnapshot empty, int parallelism) {
+    return aggregate(builds, RUN_TO_BUILD_STATS, empty, parallelism);
+  }
+
+  /**
+   * Aggregate builds, reading their stats with the given function on up to the given number of
+   * threads
+   *
+   * @param builds the builds to aggregate, from the oldest one to the newest one
+   * @param reader function reading the stats of a build, or returning null if it has none
+   * @param empty the empty history to aggregate into, which defines the window of the history
+   * @param parallelism maximal number of threads to use, or 1 to aggregate on the calling thread
+   * @return the aggregated history
+   */
+  static <T> FlakyTestHistorySnapshot aggregate(List<? extends T> builds,
+      Function<? super T, BuildStats> reader, FlakyTestHistorySnapshot empty, int parallelism) {
+    if (parallelism <= 1 || builds.size() <= BUILDS_PER_TASK) {
+      return aggregateRange(builds, reader, empty, 0, builds.size()).build();
+    }
+
+    final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    ForkJoinPool pool = new ForkJoinPool(parallelism,
+        new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+          @Override
+          public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread =
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Flaky test history aggregation #" + thread.getPoolIndex());
+            // Stats files are read with XStream, which needs to see the plugin classes
+            thread.setContextClassLoader(contextClassLoader);
+            return thread;
+          }
+        }, null, false);
+    try {
+      return pool.invoke(new AggregateTask<T>(builds, reader, empty, 0, builds.size())).build();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static <T> FlakyTestHistorySnapshot.Builder aggregateRange(List<? extends T> builds,
+      Function<? super T, BuildStats> reader, FlakyTestHistorySnapshot empty, int from, int to) {
+    FlakyTestHistorySnapshot.Builder builder = new FlakyTestHistorySnapshot.Builder(empty);
+    for (int i = from; i < to; i++) {
+      BuildStats buildStats = reader.apply(builds.get(i));
+      if (buildStats != null) {
+        builder.add(buildStats.getBuildNumber(), buildStats.isDeflake(),
+            buildStats.getTimestamp(), buildStats.getTestFlakyStatsMap());
+      }
+    }
+    return builder;
+  }
+
+  /**
+   * Aggregates a range of builds, splitting it in two halves merged in build order
+   */
+  @SuppressFBWarnings(value = "SE_BAD_FIELD", justification = "tasks are never serialized")
+  private static final class AggregateTask<T>
+      extends RecursiveTask<FlakyTestHistorySnapshot.Builder> {
+
+    private final List<? extends T> builds;
+
+    private final Function<? super T, BuildStats> reader;
+
+    private final FlakyTestHistorySnapshot empty;
+
+    private final int from;
+
+    private final int to;
+
+    AggregateTask(List<? extends T> builds, Function<? super T, BuildStats> reader,
+        FlakyTestHistorySnapshot empty, int from, int to) {
+      this.builds = builds;
+      this.reader = reader;
+      this.empty = empty;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected FlakyTestHistorySnapshot.Builder compute() {
+      if (to - from <= BUILDS_PER_TASK) {
+        return aggregateRange(builds, reader, empty, from, to);
+      }
+      int middle = (from + to) >>> 1;
+      AggregateTask<T> earlier = new AggregateTask<T>(builds, reader, empty, from, middle);
+      AggregateTask<T> later = new AggregateTask<T>(builds, reader, empty, middle, to);
+      earlier.fork();
+      FlakyTestHistorySnapshot.Builder laterHistory = later.compute();
+      return earlier.join().merge(laterHistory);
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+}
@@ -0,0 +1,761 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.base.Function;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistorySnapshot.BuildStats;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistorySnapshot.RevisionSeries;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import jenkins.util.Timer;
+
+/**
+ * Per-job on-disk index of the flaky history. The index starts with the aggregated history of all
+ * the builds at the time it was built, and every completed build is appended to it, so the
+ * history of a job is loaded from one file once, instead of reading the flaky stats file of every
+ * build on each page view. The index is only rebuilt from the per-build files when it is missing
+ * or corrupt.
+ *
+ * <p>Records are framed with their length and a CRC32 checksum, and each append is forced to disk.
+ * A record torn by an unclean shutdown is dropped with everything after it when the index is read,
+ * and the builds it held are appended again by the catch-up, so the index doesn't need a rebuild.
+ * Once enough records are appended after the snapshot, the index is compacted into a new snapshot
+ * of the loaded history.
+ */
+public class FlakyTestHistoryIndex {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyTestHistoryIndex.class.getName());
+
+  static final String INDEX_FILE_NAME = "flakyTestHistory.idx";
+
+  private static final int MAGIC = 0x46544849;
+
+  private static final int VERSION = 4;
+
+  private static final int BUILD_RECORD = 1;
+
+  private static final int SNAPSHOT_RECORD = 2;
+
+  private static final int DELETE_RECORD = 3;
+
+  /**
+   * Length and checksum around each record
+   */
+  private static final int FRAME_SIZE = 4 + 4;
+
+  /**
+   * Number of records appended after the snapshot before the index is compacted
+   */
+  private static final int COMPACTION_THRESHOLD = 100;
+
+  /**
+   * Loaded indexes, keyed by the full name of their job
+   */
+  private static final Map<String, FlakyTestHistoryIndex> INDEXES =
+      new HashMap<String, FlakyTestHistoryIndex>();
+
+  /**
+   * Whether loaded histories are going to be aggregated again in the background
+   */
+  private static final AtomicBoolean REAGGREGATION_SCHEDULED = new AtomicBoolean();
+
+  /**
+   * The project this index belongs to
+   */
+  private final AbstractProject<?, ?> project;
+
+  /**
+   * The action showing the history of the project, which is loading until the history is loaded
+   */
+  private final HistoryAggregatedFlakyTestResultAction action;
+
+  /**
+   * Compacted stats of the builds of the project, which the index is rebuilt from
+   */
+  private final FlakyTestStatsSegment segment;
+
+  /**
+   * History aggregated from the index, null until it is first requested
+   */
+  private volatile HistoryAggregatedFlakyTestResultAction history;
+
+  /**
+   * Whether the history has been requested to be loaded in the background
+   */
+  private final AtomicBoolean loadRequested = new AtomicBoolean();
+
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+  /**
+   * Number of records appended after the snapshot of the index
+   */
+  private int journalRecords;
+
+  private FlakyTestHistoryIndex(AbstractProject<?, ?> project) {
+    this.project = project;
+    this.segment = new FlakyTestStatsSegment(project);
+    this.action = new HistoryAggregatedFlakyTestResultAction(project);
+    this.action.setLoading(true);
+  }
+
+  /**
+   * Get the index of the given project, creating it on first use
+   *
+   * @param project the project to get the index for
+   * @return the index of the project
+   */
+  public static FlakyTestHistoryIndex forProject(AbstractProject<?, ?> project) {
+    synchronized (INDEXES) {
+      FlakyTestHistoryIndex index = INDEXES.get(project.getFullName());
+      if (index == null || index.project != project) {
+        index = new FlakyTestHistoryIndex(project);
+        INDEXES.put(project.getFullName(), index);
+      }
+      return index;
+    }
+  }
+
+  AbstractProject<?, ?> getProject() {
+    return project;
+  }
+
+  File getIndexFile() {
+    return new File(project.getRootDir(), INDEX_FILE_NAME);
+  }
+
+  /**
+   * Get the aggregated flaky history of the project, loading it from the index the first time
+   *
+   * @return the aggregated flaky history
+   */
+  public HistoryAggregatedFlakyTestResultAction getHistory() {
+    HistoryAggregatedFlakyTestResultAction loaded = history;
+    if (loaded != null) {
+      return loaded;
+    }
+    synchronized (this) {
+      if (history == null) {
+        load();
+        action.setLoading(false);
+        history = action;
+      }
+      return history;
+    }
+  }
+
+  /**
+   * Get the action showing the aggregated flaky history of the project without waiting for it to
+   * be loaded. If the history isn't loaded yet, it is loaded in the background and the action is
+   * in the loading state until then.
+   *
+   * @return the action showing the aggregated flaky history
+   */
+  public HistoryAggregatedFlakyTestResultAction getHistoryAction() {
+    if (history == null && loadRequested.compareAndSet(false, true)) {
+      FlakyTestHistoryWarmUp.requestLoad(this);
+    }
+    return action;
+  }
+
+  boolean isLoaded() {
+    return history != null;
+  }
+
+  /**
+   * Let the next page view request the history to be loaded again
+   */
+  void loadFailed() {
+    loadRequested.set(false);
+  }
+
+  /**
+   * Append the flaky stats of a completed build to the index, and to the history if it has already
+   * been loaded. This only costs as much as the number of tests in the build.
+   *
+   * @param build the completed build
+   */
+  public synchronized void recordBuild(Run<?, ?> build) {
+    // If the history isn't loaded yet, the build is only appended to the index. A missing index is
+    // rebuilt from all the builds, including this one, when first loaded.
+    appendBuild(build, history);
+    segment.compactLater();
+  }
+
+  /**
+   * Aggregate the loaded histories again in the background, e.g. after the configured window
+   * changed. Histories which aren't loaded yet are rebuilt when first loaded, since their index
+   * doesn't have the new window.
+   */
+  static void reaggregateAll() {
+    if (!REAGGREGATION_SCHEDULED.compareAndSet(false, true)) {
+      return;
+    }
+    Timer.get().submit(new Runnable() {
+      @Override
+      public void run() {
+        REAGGREGATION_SCHEDULED.set(false);
+        List<FlakyTestHistoryIndex> indexes;
+        synchronized (INDEXES) {
+          indexes = new ArrayList<FlakyTestHistoryIndex>(INDEXES.values());
+        }
+        for (FlakyTestHistoryIndex index : indexes) {
+          index.reaggregate();
+        }
+      }
+    });
+  }
+
+  private synchronized void reaggregate() {
+    if (history != null && !hasConfiguredWindow(history.getSnapshot())) {
+      history.setSnapshot(rebuild());
+    }
+  }
+
+  private static boolean hasConfiguredWindow(FlakyTestHistorySnapshot snapshot) {
+    FlakyTestHandlerConfiguration configuration = FlakyTestHandlerConfiguration.get();
+    return snapshot.hasWindow(configuration.getHistoryWindowBuilds(),
+        configuration.getHistoryWindowDays());
+  }
+
+  /**
+   * Subtract the flaky stats of a deleted build from the index, and from the history if it has
+   * already been loaded
+   *
+   * @param build the build being deleted
+   */
+  public synchronized void removeBuild(Run<?, ?> build) {
+    // The segment drops the record of the build once it is rewritten
+    segment.compactLater();
+    if (history != null && !history.getSnapshot().getBuildNumbers().contains(build.getNumber())) {
+      return;
+    }
+    Map<String, SingleTestFlakyStatsWithRevision> stats =
+        HistoryAggregatedFlakyTestResultAction.getTestFlakyStatsMap(build);
+    if (stats == null) {
+      return;
+    }
+    appendRecord(DELETE_RECORD, new BuildStats(build.getNumber(),
+        HistoryAggregatedFlakyTestResultAction.isDeflakeBuild(build), build.getTimeInMillis(),
+        stats));
+
+    if (history != null) {
+      history.removeRunStats(build.getNumber(), stats);
+    }
+  }
+
+  /**
+   * Load the history from the index file into the action, rebuilding the index when it is
+   * missing, corrupt, or has another window than the configured one
+   */
+  private void load() {
+    File file = getIndexFile();
+    if (file.exists()) {
+      try {
+        FlakyTestHistorySnapshot snapshot = readIndex(file);
+        if (hasConfiguredWindow(snapshot)) {
+          action.setSnapshot(snapshot);
+          catchUp(action);
+          // The last non-deflake build may have been deleted since the index was written
+          action.restoreAllTests();
+          if (journalRecords >= COMPACTION_THRESHOLD) {
+            compactLater();
+          }
+          return;
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Flaky test history index " + file + " is corrupt, rebuilding it",
+            e);
+      }
+    }
+    action.setSnapshot(rebuild());
+  }
+
+  /**
+   * Rebuild the index from the flaky stats of every completed build. The stats of the builds
+   * compacted into the {@link FlakyTestStatsSegment} are read from it in one pass, the others from
+   * their own stats file. The builds are aggregated with {@link FlakyTestHistoryAggregator}, and
+   * only the aggregated history is written to the index.
+   */
+  private FlakyTestHistorySnapshot rebuild() {
+    final Map<Integer, BuildStats> compacted = segment.readAll();
+    // Aggregate from the oldest build to the newest one
+    List<Integer> buildNumbers = new ArrayList<Integer>(project._getRuns().keySet());
+    Collections.sort(buildNumbers);
+    FlakyTestHistorySnapshot snapshot = FlakyTestHistoryAggregator.aggregate(buildNumbers,
+        new Function<Integer, BuildStats>() {
+          @Override
+          public BuildStats apply(Integer buildNumber) {
+            if (compacted.containsKey(buildNumber)) {
+              return compacted.get(buildNumber);
+            }
+            Run<?, ?> build = project.getBuildByNumber(buildNumber);
+            if (build == null || build.isBuilding()) {
+              return null;
+            }
+            return FlakyTestHistoryAggregator.RUN_TO_BUILD_STATS.apply(build);
+          }
+        });
+    if (compacted.size() < buildNumbers.size()) {
+      segment.compactLater();
+    }
+
+    writeIndex(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Replace the index with one holding only the given snapshot
+   */
+  private void writeIndex(FlakyTestHistorySnapshot snapshot) {
+    File file = getIndexFile();
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      DataOutputStream recordOut = new DataOutputStream(record);
+      recordOut.write(SNAPSHOT_RECORD);
+      writeSnapshotRecord(recordOut, snapshot);
+      recordOut.close();
+
+      FileOutputStream fileOut = new FileOutputStream(tmp);
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeRecord(out, record.toByteArray());
+        out.flush();
+        fileOut.getChannel().force(false);
+      } finally {
+        fileOut.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      journalRecords = 0;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save flaky test history index " + file, e);
+      deleteIndex();
+    }
+    if (tmp.exists() && !tmp.delete()) {
+      LOGGER.log(Level.WARNING, "Failed to delete " + tmp);
+    }
+  }
+
+  /**
+   * Compact the index into a snapshot of the loaded history in the background, unless a compaction
+   * is already scheduled
+   */
+  private void compactLater() {
+    if (compactionScheduled.compareAndSet(false, true)) {
+      Timer.get().submit(new Runnable() {
+        @Override
+        public void run() {
+          compactionScheduled.set(false);
+          compact();
+        }
+      });
+    }
+  }
+
+  private synchronized void compact() {
+    // The loaded history has every record of the index applied
+    if (history != null && journalRecords >= COMPACTION_THRESHOLD) {
+      writeIndex(history.getSnapshot());
+    }
+  }
+
+  /**
+   * Aggregate the builds which completed after the last one recorded in the index, e.g. because
+   * the controller stopped before they were recorded
+   */
+  private void catchUp(HistoryAggregatedFlakyTestResultAction loaded) {
+    SortedSet<Integer> indexedBuilds = loaded.getSnapshot().getBuildNumbers();
+    int lastIndexedBuild = indexedBuilds.isEmpty() ? -1 : indexedBuilds.last();
+
+    List<Run<?, ?>> missed = new ArrayList<Run<?, ?>>();
+    // Builds are iterated from the newest one, so stop at the last indexed build
+    for (Run<?, ?> build : project.getBuilds()) {
+      if (build.getNumber() <= lastIndexedBuild) {
+        break;
+      }
+      if (!build.isBuilding()) {
+        missed.add(build);
+      }
+    }
+    Collections.reverse(missed);
+
+    for (Run<?, ?> build : missed) {
+      appendBuild(build, loaded);
+    }
+  }
+
+  private void appendBuild(Run<?, ?> build, HistoryAggregatedFlakyTestResultAction target) {
+    if (target != null && target.getSnapshot().getBuildNumbers().contains(build.getNumber())) {
+      return;
+    }
+    Map<String, SingleTestFlakyStatsWithRevision> stats =
+        HistoryAggregatedFlakyTestResultAction.getTestFlakyStatsMap(build);
+    if (stats == null) {
+      return;
+    }
+    boolean isDeflake = HistoryAggregatedFlakyTestResultAction.isDeflakeBuild(build);
+    long timestamp = build.getTimeInMillis();
+    appendRecord(BUILD_RECORD, new BuildStats(build.getNumber(), isDeflake, timestamp, stats));
+
+    if (target != null) {
+      target.aggregateRunStats(build.getNumber(), isDeflake, timestamp, stats);
+    }
+  }
+
+  private void appendRecord(int recordType, BuildStats buildStats) {
+    // Without an index file there is nothing to append to, it will be rebuilt on next load
+    File file = getIndexFile();
+    if (file.exists()) {
+      try {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.write(recordType);
+        writeBuildStats(recordOut, buildStats.getBuildNumber(), buildStats.isDeflake(),
+            buildStats.getTimestamp(), buildStats.getTestFlakyStatsMap());
+        recordOut.close();
+
+        FileOutputStream fileOut = new FileOutputStream(file, true);
+        try {
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+          writeRecord(out, record.toByteArray());
+          out.flush();
+          // The record must be on disk before the build is considered indexed
+          fileOut.getChannel().force(false);
+        } finally {
+          fileOut.close();
+        }
+        journalRecords++;
+        if (journalRecords >= COMPACTION_THRESHOLD && history != null) {
+          compactLater();
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to update flaky test history index " + file, e);
+        deleteIndex();
+      }
+    }
+  }
+
+  /**
+   * Read the aggregated history at the start of the index, then aggregate the builds appended
+   * after it and subtract the builds deleted after it. A torn or corrupt record after the snapshot
+   * is truncated from the index along with everything after it.
+   */
+  private FlakyTestHistorySnapshot readIndex(File file) throws IOException {
+    long length = file.length();
+    long position = 4 + 4;
+    int records = 0;
+    boolean torn = false;
+    FlakyTestHistorySnapshot.Builder builder;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unrecognized flaky test history index format");
+      }
+      byte[] record = readRecord(in, length - position);
+      if (record == null || record[0] != SNAPSHOT_RECORD) {
+        throw new IOException("Missing aggregated flaky test history");
+      }
+      position += FRAME_SIZE + record.length;
+      builder = new FlakyTestHistorySnapshot.Builder(readSnapshotRecord(toStream(record)));
+
+      try {
+        while ((record = readRecord(in, length - position)) != null) {
+          if (record[0] == BUILD_RECORD) {
+            // Builds already aggregated are skipped by the builder
+            BuildStats buildStats = readBuildStats(toStream(record));
+            builder.add(buildStats.getBuildNumber(), buildStats.isDeflake(),
+                buildStats.getTimestamp(), buildStats.getTestFlakyStatsMap());
+          } else if (record[0] == DELETE_RECORD) {
+            BuildStats buildStats = readBuildStats(toStream(record));
+            builder.remove(buildStats.getBuildNumber(), buildStats.getTestFlakyStatsMap());
+          } else {
+            throw new IOException("Unknown record type " + record[0]);
+          }
+          position += FRAME_SIZE + record.length;
+          records++;
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Dropping the end of flaky test history index " + file
+            + " from offset " + position, e);
+        torn = true;
+      }
+    } finally {
+      in.close();
+    }
+
+    if (torn) {
+      RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+      try {
+        truncated.setLength(position);
+      } finally {
+        truncated.close();
+      }
+    }
+    journalRecords = records;
+    return builder.build();
+  }
+
+  /**
+   * Write a record framed with its length and checksum
+   *
+   * @param out the index to write to
+   * @param record the record, starting with its type
+   */
+  private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+    CRC32 checksum = new CRC32();
+    checksum.update(record);
+    out.writeInt(record.length);
+    out.write(record);
+    out.writeInt((int) checksum.getValue());
+  }
+
+  /**
+   * Read the next record of the index
+   *
+   * @param in the index to read from
+   * @param remaining number of bytes left in the index
+   * @return the record, starting with its type, or null at the end of the index
+   * @throws IOException if the record is incomplete or doesn't match its checksum
+   */
+  private static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+    if (remaining == 0) {
+      return null;
+    }
+    if (remaining < FRAME_SIZE) {
+      throw new IOException("Incomplete record");
+    }
+    int length = in.readInt();
+    if (length < 1 || length > remaining - FRAME_SIZE) {
+      throw new IOException("Incomplete record of length " + length);
+    }
+    byte[] record = new byte[length];
+    in.readFully(record);
+    CRC32 checksum = new CRC32();
+    checksum.update(record);
+    if (in.readInt() != (int) checksum.getValue()) {
+      throw new IOException("Checksum mismatch");
+    }
+    return record;
+  }
+
+  /**
+   * Get a stream over the content of a record, after its type
+   */
+  private static DataInputStream toStream(byte[] record) {
+    return new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1));
+  }
+
+  private static FlakyTestHistorySnapshot readSnapshotRecord(DataInputStream in)
+      throws IOException {
+    int windowBuilds = in.readInt();
+    int windowDays = in.readInt();
+    long newestTimestamp = in.readLong();
+    if (windowBuilds > 0 || windowDays > 0) {
+      // A windowed history is aggregated again from the stats of the builds in its window
+      FlakyTestHistorySnapshot.Builder builder = new FlakyTestHistorySnapshot.Builder(
+          FlakyTestHistorySnapshot.empty(windowBuilds, windowDays));
+      int buildCount = in.readInt();
+      for (int i = 0; i < buildCount; i++) {
+        BuildStats buildStats = readBuildStats(in);
+        builder.add(buildStats.getBuildNumber(), buildStats.isDeflake(),
+            buildStats.getTimestamp(), buildStats.getTestFlakyStatsMap());
+      }
+      return builder.build();
+    }
+
+    SortedSet<Integer> buildNumbers = new TreeSet<Integer>();
+    int buildCount = in.readInt();
+    for (int i = 0; i < buildCount; i++) {
+      buildNumbers.add(in.readInt());
+    }
+    int allTestsBuildNumber = in.readInt();
+
+    String[] revisions = new String[in.readInt()];
+    for (int i = 0; i < revisions.length; i++) {
+      revisions[i] = FlakyRunStatsFile.readString(in);
+    }
+
+    FlakyTestHistorySnapshot.Builder builder =
+        FlakyTestHistorySnapshot.restore(buildNumbers, newestTimestamp);
+    Set<String> allTests = new HashSet<String>();
+    int testCount = in.readInt();
+    for (int i = 0; i < testCount; i++) {
+      String testName = FlakyRunStatsFile.readString(in);
+      if (in.readBoolean()) {
+        allTests.add(testName);
+      }
+      int seriesSize = in.readInt();
+      for (int j = 0; j < seriesSize; j++) {
+        int revision = in.readInt();
+        if (revision < 0 || revision >= revisions.length) {
+          throw new IOException("Unknown revision " + revision);
+        }
+        SingleTestFlakyStats stats =
+            new SingleTestFlakyStats(in.readInt(), in.readInt(), in.readInt());
+        // Revisions are stored once per test, so each one is new to the series
+        builder.addRevisionStats(testName, revisions[revision], stats);
+      }
+    }
+    return builder.setAllTests(allTestsBuildNumber, allTests).build();
+  }
+
+  private static void writeSnapshotRecord(DataOutputStream out, FlakyTestHistorySnapshot snapshot)
+      throws IOException {
+    out.writeInt(snapshot.getWindowBuilds());
+    out.writeInt(snapshot.getWindowDays());
+    out.writeLong(snapshot.getNewestTimestamp());
+    if (snapshot.isWindowed()) {
+      out.writeInt(snapshot.getWindow().size());
+      for (BuildStats buildStats : snapshot.getWindow().values()) {
+        writeBuildStats(out, buildStats.getBuildNumber(), buildStats.isDeflake(),
+            buildStats.getTimestamp(), buildStats.getTestFlakyStatsMap());
+      }
+      return;
+    }
+
+    out.writeInt(snapshot.getBuildNumbers().size());
+    for (int buildNumber : snapshot.getBuildNumbers()) {
+      out.writeInt(buildNumber);
+    }
+    out.writeInt(snapshot.getAllTestsBuildNumber());
+
+    // Revisions are shared by most tests, so write each of them once
+    Map<String, Integer> revisionIndexes = new LinkedHashMap<String, Integer>();
+    for (RevisionSeries series : snapshot.getTestRevisionSeries().values()) {
+      for (int i = 0; i < series.size(); i++) {
+        String revision = series.getRevision(i);
+        if (!revisionIndexes.containsKey(revision)) {
+          revisionIndexes.put(revision, revisionIndexes.size());
+        }
+      }
+    }
+    out.writeInt(revisionIndexes.size());
+    for (String revision : revisionIndexes.keySet()) {
+      FlakyRunStatsFile.writeString(out, revision);
+    }
+
+    out.writeInt(snapshot.getTestRevisionSeries().size());
+    for (Map.Entry<String, RevisionSeries> entry : snapshot.getTestRevisionSeries().entrySet()) {
+      RevisionSeries series = entry.getValue();
+      FlakyRunStatsFile.writeString(out, entry.getKey());
+      out.writeBoolean(snapshot.getAllTests().contains(entry.getKey()));
+      out.writeInt(series.size());
+      for (int i = 0; i < series.size(); i++) {
+        out.writeInt(revisionIndexes.get(series.getRevision(i)));
+        out.writeInt(series.getPass(i));
+        out.writeInt(series.getFail(i));
+        out.writeInt(series.getFlake(i));
+      }
+    }
+  }
+
+  static BuildStats readBuildStats(DataInputStream in) throws IOException {
+    int buildNumber = in.readInt();
+    boolean isDeflake = in.readBoolean();
+    long timestamp = in.readLong();
+    int size = in.readInt();
+    Map<String, SingleTestFlakyStatsWithRevision> stats =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>();
+    for (int i = 0; i < size; i++) {
+      String testName = FlakyRunStatsFile.readString(in);
+      String revision = FlakyRunStatsFile.readString(in);
+      SingleTestFlakyStats testStats =
+          new SingleTestFlakyStats(in.readInt(), in.readInt(), in.readInt());
+      stats.put(testName, new SingleTestFlakyStatsWithRevision(testStats, revision));
+    }
+    return new BuildStats(buildNumber, isDeflake, timestamp, stats);
+  }
+
+  static void writeBuildStats(DataOutputStream out, int buildNumber, boolean isDeflake,
+      long timestamp, Map<String, SingleTestFlakyStatsWithRevision> stats) throws IOException {
+    out.writeInt(buildNumber);
+    out.writeBoolean(isDeflake);
+    out.writeLong(timestamp);
+    out.writeInt(stats.size());
+    for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : stats.entrySet()) {
+      SingleTestFlakyStats testStats = entry.getValue().getStats();
+      FlakyRunStatsFile.writeString(out, entry.getKey());
+      FlakyRunStatsFile.writeString(out, entry.getValue().getRevision());
+      out.writeInt(testStats.getPass());
+      out.writeInt(testStats.getFail());
+      out.writeInt(testStats.getFlake());
+    }
+  }
+
+  private void deleteIndex() {
+    File file = getIndexFile();
+    if (file.exists() && !file.delete()) {
+      LOGGER.log(Level.WARNING, "Failed to delete flaky test history index " + file);
+    }
+  }
+
+  /**
+   * Drop the cached index when a job is deleted or renamed
+   */
+  @Extension
+  public static class ItemListenerImpl extends ItemListener {
+
+    @Override
+    public void onDeleted(Item item) {
+      synchronized (INDEXES) {
+        INDEXES.remove(item.getFullName());
+      }
+    }
+
+    @Override
+    public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+      synchronized (INDEXES) {
+        INDEXES.remove(oldFullName);
+      }
+    }
+  }
+}
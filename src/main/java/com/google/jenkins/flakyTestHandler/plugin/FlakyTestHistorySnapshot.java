@@ -0,0 +1,1015 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable state of the flaky history of a job. A snapshot is never modified once it has been
+ * published, so page renders and REST readers can use it without locking while the next snapshot
+ * is being prepared by a {@link Builder}.
+ *
+ * <p>Revisions are interned to int ids by a {@link Revisions} dictionary shared along a chain of
+ * snapshots, and the stats of each test are kept in primitive arrays indexed by revision, so the
+ * history doesn't hold one revision string and one stats object per test and revision.
+ *
+ * <p>A snapshot may be limited to a window of the latest builds, in which case it also keeps the
+ * stats of each build in the window, so they can be subtracted again when the build leaves it.
+ */
+final class FlakyTestHistorySnapshot {
+
+  private static final AtomicLong GENERATIONS = new AtomicLong();
+
+  static final FlakyTestHistorySnapshot EMPTY = empty(0, 0);
+
+  /**
+   * Map between test name and its flaky stats for each revision
+   */
+  private final SortedMap<String, RevisionSeries> testRevisionSeries;
+
+  /**
+   * The set of all tests being run in last non-deflake build
+   */
+  private final Set<String> allTests;
+
+  /**
+   * Number of the build {@link #allTests} was taken from
+   */
+  private final int allTestsBuildNumber;
+
+  /**
+   * Dictionary of the revisions used by the series of this snapshot
+   */
+  private final Revisions revisions;
+
+  /**
+   * Number of tests with stats for each revision, indexed by revision id
+   */
+  private final int[] revisionCounts;
+
+  /**
+   * Number of revisions with stats for at least one test
+   */
+  private final int liveRevisions;
+
+  /**
+   * Numbers of all the builds aggregated into this snapshot
+   */
+  private final SortedSet<Integer> buildNumbers;
+
+  /**
+   * Maximal number of builds in the history, or 0 for no limit
+   */
+  private final int windowBuilds;
+
+  /**
+   * Maximal age in days of the builds in the history, relative to the newest build, or 0 for no
+   * limit
+   */
+  private final int windowDays;
+
+  /**
+   * Stats of each build in the history, by build number. Only kept when the history is windowed.
+   */
+  private final SortedMap<Integer, BuildStats> window;
+
+  /**
+   * Timestamp of the newest build aggregated into this snapshot
+   */
+  private final long newestTimestamp;
+
+  /**
+   * Number identifying this snapshot among the snapshots built since startup
+   */
+  private final long generation = GENERATIONS.incrementAndGet();
+
+  /**
+   * Map between the name of each test in {@link #allTests} and its summary over revisions,
+   * materialized on first use
+   */
+  private volatile Map<String, SingleTestFlakyStats> aggregatedFlakyStats;
+
+  /**
+   * Entries of {@link #aggregatedFlakyStats} for the tests which flaked, materialized on first use
+   */
+  private volatile Map<String, SingleTestFlakyStats> flakyAggregatedFlakyStats;
+
+  private FlakyTestHistorySnapshot(SortedMap<String, RevisionSeries> testRevisionSeries,
+      Set<String> allTests, int allTestsBuildNumber, Revisions revisions, int[] revisionCounts,
+      int liveRevisions, SortedSet<Integer> buildNumbers, int windowBuilds, int windowDays,
+      SortedMap<Integer, BuildStats> window, long newestTimestamp) {
+    this.testRevisionSeries = Collections.unmodifiableSortedMap(testRevisionSeries);
+    this.allTests = allTests;
+    this.allTestsBuildNumber = allTestsBuildNumber;
+    this.revisions = revisions;
+    this.revisionCounts = revisionCounts;
+    this.liveRevisions = liveRevisions;
+    this.buildNumbers = Collections.unmodifiableSortedSet(buildNumbers);
+    this.windowBuilds = windowBuilds;
+    this.windowDays = windowDays;
+    this.window = Collections.unmodifiableSortedMap(window);
+    this.newestTimestamp = newestTimestamp;
+  }
+
+  /**
+   * Get an empty history
+   *
+   * @param windowBuilds maximal number of builds in the history, or 0 for no limit
+   * @param windowDays maximal age in days of the builds in the history, or 0 for no limit
+   * @return the empty history
+   */
+  static FlakyTestHistorySnapshot empty(int windowBuilds, int windowDays) {
+    return new FlakyTestHistorySnapshot(new TreeMap<String, RevisionSeries>(),
+        Collections.<String>emptySet(), -1, new Revisions(), new int[0], 0,
+        new TreeSet<Integer>(), Math.max(0, windowBuilds), Math.max(0, windowDays),
+        new TreeMap<Integer, BuildStats>(), Long.MIN_VALUE);
+  }
+
+  /**
+   * Start restoring a history without window from its persisted state. The stats of each test
+   * are then added with {@link Builder#addRevisionStats}, and all tests with
+   * {@link Builder#setAllTests}.
+   *
+   * @param buildNumbers numbers of all the aggregated builds
+   * @param newestTimestamp timestamp of the newest aggregated build
+   * @return the builder of the history
+   */
+  static Builder restore(SortedSet<Integer> buildNumbers, long newestTimestamp) {
+    Builder builder = new Builder(EMPTY);
+    builder.buildNumbers.addAll(buildNumbers);
+    builder.newestTimestamp = newestTimestamp;
+    return builder;
+  }
+
+  SortedMap<String, RevisionSeries> getTestRevisionSeries() {
+    return testRevisionSeries;
+  }
+
+  Set<String> getAllTests() {
+    return allTests;
+  }
+
+  int getAllTestsBuildNumber() {
+    return allTestsBuildNumber;
+  }
+
+  SortedSet<Integer> getBuildNumbers() {
+    return buildNumbers;
+  }
+
+  int getWindowBuilds() {
+    return windowBuilds;
+  }
+
+  int getWindowDays() {
+    return windowDays;
+  }
+
+  long getNewestTimestamp() {
+    return newestTimestamp;
+  }
+
+  long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Whether the history is limited to a window of the latest builds
+   */
+  boolean isWindowed() {
+    return windowBuilds > 0 || windowDays > 0;
+  }
+
+  /**
+   * Whether the history is limited to the given window
+   *
+   * @param windowBuilds maximal number of builds in the history, or 0 for no limit
+   * @param windowDays maximal age in days of the builds in the history, or 0 for no limit
+   * @return true if the history has that window
+   */
+  boolean hasWindow(int windowBuilds, int windowDays) {
+    return this.windowBuilds == Math.max(0, windowBuilds)
+        && this.windowDays == Math.max(0, windowDays);
+  }
+
+  /**
+   * Get the stats of each build in the window, from the oldest build to the newest one
+   *
+   * @return the stats of each build, empty if the history isn't windowed
+   */
+  SortedMap<Integer, BuildStats> getWindow() {
+    return window;
+  }
+
+  /**
+   * Get the summary over revisions of every test run in the last non-deflake build, in test name
+   * order. The map and its stats are shared by all readers of this snapshot and must not be
+   * modified.
+   *
+   * @return map between test name and the number of revisions it passed, failed or flaked at
+   */
+  Map<String, SingleTestFlakyStats> getAggregatedFlakyStats() {
+    Map<String, SingleTestFlakyStats> stats = aggregatedFlakyStats;
+    if (stats == null) {
+      Map<String, SingleTestFlakyStats> materialized =
+          new LinkedHashMap<String, SingleTestFlakyStats>();
+      for (Map.Entry<String, RevisionSeries> entry : testRevisionSeries.entrySet()) {
+        if (allTests.contains(entry.getKey())) {
+          materialized.put(entry.getKey(), entry.getValue().getSummary());
+        }
+      }
+      stats = Collections.unmodifiableMap(materialized);
+      aggregatedFlakyStats = stats;
+    }
+    return stats;
+  }
+
+  /**
+   * Get the entries of {@link #getAggregatedFlakyStats()} for the tests which flaked at least at
+   * one revision
+   *
+   * @return map between test name and its summary over revisions
+   */
+  Map<String, SingleTestFlakyStats> getFlakyAggregatedFlakyStats() {
+    Map<String, SingleTestFlakyStats> stats = flakyAggregatedFlakyStats;
+    if (stats == null) {
+      Map<String, SingleTestFlakyStats> materialized =
+          new LinkedHashMap<String, SingleTestFlakyStats>();
+      for (Map.Entry<String, SingleTestFlakyStats> entry : getAggregatedFlakyStats().entrySet()) {
+        if (entry.getValue().getFlake() > 0) {
+          materialized.put(entry.getKey(), entry.getValue());
+        }
+      }
+      stats = Collections.unmodifiableMap(materialized);
+      flakyAggregatedFlakyStats = stats;
+    }
+    return stats;
+  }
+
+  /**
+   * Flaky stats of one build, kept while the build is in the window of a history
+   */
+  static final class BuildStats {
+
+    private final int buildNumber;
+
+    private final boolean isDeflake;
+
+    private final long timestamp;
+
+    private final Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap;
+
+    BuildStats(int buildNumber, boolean isDeflake, long timestamp,
+        Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap) {
+      this.buildNumber = buildNumber;
+      this.isDeflake = isDeflake;
+      this.timestamp = timestamp;
+      this.testFlakyStatsMap = testFlakyStatsMap;
+    }
+
+    int getBuildNumber() {
+      return buildNumber;
+    }
+
+    boolean isDeflake() {
+      return isDeflake;
+    }
+
+    long getTimestamp() {
+      return timestamp;
+    }
+
+    Map<String, SingleTestFlakyStatsWithRevision> getTestFlakyStatsMap() {
+      return testFlakyStatsMap;
+    }
+  }
+
+  /**
+   * Append-only dictionary between revisions and int ids. Ids are only interned while a
+   * {@link Builder} prepares a snapshot, and are visible to the readers of every snapshot
+   * published afterwards.
+   */
+  static final class Revisions {
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    private volatile String[] names = new String[16];
+
+    private int size;
+
+    /**
+     * Get the id of a revision, adding it to the dictionary if needed
+     *
+     * @param revision the revision
+     * @return the id of the revision
+     */
+    synchronized int intern(String revision) {
+      Integer id = ids.get(revision);
+      if (id != null) {
+        return id;
+      }
+      String[] current = names;
+      if (size == current.length) {
+        current = Arrays.copyOf(current, size * 2);
+      }
+      current[size] = revision;
+      names = current;
+      ids.put(revision, size);
+      return size++;
+    }
+
+    /**
+     * Get the id of a revision
+     *
+     * @param revision the revision
+     * @return the id of the revision, or -1 if it isn't in the dictionary
+     */
+    synchronized int idOf(String revision) {
+      Integer id = ids.get(revision);
+      return id == null ? -1 : id;
+    }
+
+    String get(int id) {
+      return names[id];
+    }
+
+    synchronized int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Prepares the next snapshot from an existing one. Only the tests touched by the aggregated
+   * builds are copied, all the others are shared with the base snapshot.
+   */
+  static final class Builder {
+
+    private final TreeMap<String, RevisionSeries> testRevisionSeries;
+
+    private Set<String> allTests;
+
+    private int allTestsBuildNumber;
+
+    private Revisions revisions;
+
+    private int[] revisionCounts;
+
+    private int liveRevisions;
+
+    private final TreeSet<Integer> buildNumbers;
+
+    private final int windowBuilds;
+
+    private final int windowDays;
+
+    private final TreeMap<Integer, BuildStats> window;
+
+    private long newestTimestamp;
+
+    private boolean built;
+
+    Builder(FlakyTestHistorySnapshot base) {
+      this.testRevisionSeries = new TreeMap<String, RevisionSeries>(base.testRevisionSeries);
+      this.allTests = base.allTests;
+      this.allTestsBuildNumber = base.allTestsBuildNumber;
+      // Empty histories are shared, e.g. by all the jobs, so never grow their dictionary
+      this.revisions = base.testRevisionSeries.isEmpty() ? new Revisions() : base.revisions;
+      this.revisionCounts = base.testRevisionSeries.isEmpty()
+          ? new int[0] : Arrays.copyOf(base.revisionCounts, base.revisionCounts.length);
+      this.liveRevisions = base.testRevisionSeries.isEmpty() ? 0 : base.liveRevisions;
+      this.buildNumbers = new TreeSet<Integer>(base.buildNumbers);
+      this.windowBuilds = base.windowBuilds;
+      this.windowDays = base.windowDays;
+      this.window = new TreeMap<Integer, BuildStats>(base.window);
+      this.newestTimestamp = base.newestTimestamp;
+    }
+
+    /**
+     * Aggregate the flaky stats of one build. If the history is windowed, the builds which are no
+     * longer in the window are removed afterwards.
+     *
+     * @param buildNumber number of the build the stats belong to
+     * @param isDeflake whether the build is a deflake build
+     * @param timestamp time the build was scheduled at
+     * @param testFlakyStatsMap map between test name and its flaky stats in that build
+     */
+    Builder add(int buildNumber, boolean isDeflake, long timestamp,
+        Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap) {
+      checkNotBuilt();
+      if (!buildNumbers.add(buildNumber)) {
+        // Already aggregated
+        return this;
+      }
+      if (!isDeflake && buildNumber >= allTestsBuildNumber) {
+        // This is the latest non-deflake build, update allTests
+        allTests = Collections.unmodifiableSet(new HashSet<String>(testFlakyStatsMap.keySet()));
+        allTestsBuildNumber = buildNumber;
+      }
+      newestTimestamp = Math.max(newestTimestamp, timestamp);
+
+      // Revisions first seen in this build can't be in the series of any test yet
+      Set<Integer> newRevisions = new HashSet<Integer>();
+
+      for (Map.Entry<String, SingleTestFlakyStatsWithRevision> testFlakyStat
+          : testFlakyStatsMap.entrySet()) {
+        int revision = revisions.intern(testFlakyStat.getValue().getRevision());
+        SingleTestFlakyStats stats = testFlakyStat.getValue().getStats();
+
+        if (countOf(revision) == 0) {
+          newRevisions.add(revision);
+        }
+        addStats(testFlakyStat.getKey(), revision, stats.getPass(), stats.getFail(),
+            stats.getFlake(), newRevisions.contains(revision));
+      }
+
+      if (isWindowed()) {
+        window.put(buildNumber,
+            new BuildStats(buildNumber, isDeflake, timestamp, testFlakyStatsMap));
+        evict();
+      }
+      return this;
+    }
+
+    /**
+     * Append the stats of a test for a revision which isn't in its series yet, e.g. when restoring
+     * a persisted history
+     *
+     * @param testName the test
+     * @param revision the revision
+     * @param stats the stats of the test at that revision
+     * @return this builder
+     */
+    Builder addRevisionStats(String testName, String revision, SingleTestFlakyStats stats) {
+      checkNotBuilt();
+      addStats(testName, revisions.intern(revision), stats.getPass(), stats.getFail(),
+          stats.getFlake(), true);
+      return this;
+    }
+
+    /**
+     * Subtract the flaky stats of one build from the history. Revisions left without any stats
+     * are dropped, and if the build was the one all tests were taken from, they are taken from
+     * the newest non-deflake build left in the window instead, or cleared if there is none.
+     *
+     * @param buildNumber number of the build the stats belong to
+     * @param testFlakyStatsMap map between test name and its flaky stats in that build
+     */
+    Builder remove(int buildNumber,
+        Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap) {
+      checkNotBuilt();
+      if (!buildNumbers.remove(buildNumber)) {
+        // Never aggregated
+        return this;
+      }
+      window.remove(buildNumber);
+
+      for (Map.Entry<String, SingleTestFlakyStatsWithRevision> testFlakyStat
+          : testFlakyStatsMap.entrySet()) {
+        String testName = testFlakyStat.getKey();
+        int revision = revisions.idOf(testFlakyStat.getValue().getRevision());
+        RevisionSeries series = testRevisionSeries.get(testName);
+        if (series == null || revision < 0) {
+          continue;
+        }
+        SingleTestFlakyStats stats = testFlakyStat.getValue().getStats();
+        RevisionSeries reduced =
+            series.without(revision, stats.getPass(), stats.getFail(), stats.getFlake());
+        if (reduced.size() < series.size()) {
+          count(revision, -1);
+        }
+        if (reduced.size() == 0) {
+          testRevisionSeries.remove(testName);
+        } else {
+          testRevisionSeries.put(testName, reduced);
+        }
+      }
+
+      if (buildNumber == allTestsBuildNumber) {
+        allTests = Collections.emptySet();
+        allTestsBuildNumber = -1;
+        for (BuildStats buildStats : window.descendingMap().values()) {
+          if (!buildStats.isDeflake()) {
+            setAllTests(buildStats.getBuildNumber(), buildStats.getTestFlakyStatsMap().keySet());
+            break;
+          }
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Set the tests being run in last non-deflake build
+     *
+     * @param buildNumber number of that build, or -1 if there is none
+     * @param tests the tests run in that build
+     */
+    Builder setAllTests(int buildNumber, Set<String> tests) {
+      checkNotBuilt();
+      allTests = Collections.unmodifiableSet(new HashSet<String>(tests));
+      allTestsBuildNumber = buildNumber;
+      return this;
+    }
+
+    int getAllTestsBuildNumber() {
+      return allTestsBuildNumber;
+    }
+
+    /**
+     * Whether a build is aggregated into the history
+     *
+     * @param buildNumber number of the build
+     * @return true if the build is aggregated
+     */
+    boolean contains(int buildNumber) {
+      return buildNumbers.contains(buildNumber);
+    }
+
+    /**
+     * Merge the history of later builds into this one. Since stats are merged by adding them up
+     * and revisions are kept in the order they were first seen, merging the histories of
+     * consecutive ranges of builds gives the same result as aggregating the builds one by one.
+     * Both histories must have the same window.
+     *
+     * @param later history of builds which all come after the builds of this history
+     * @return this builder
+     */
+    Builder merge(Builder later) {
+      checkNotBuilt();
+      later.checkNotBuilt();
+      if (later.windowBuilds != windowBuilds || later.windowDays != windowDays) {
+        throw new IllegalArgumentException("Can't merge histories with different windows");
+      }
+      if (later.allTestsBuildNumber >= allTestsBuildNumber) {
+        allTests = later.allTests;
+        allTestsBuildNumber = later.allTestsBuildNumber;
+      }
+      newestTimestamp = Math.max(newestTimestamp, later.newestTimestamp);
+
+      // Ids of the later revisions in the dictionary of this history
+      int[] ids = new int[later.revisions.size()];
+      // Revisions first seen in the later builds can't be in the series of any test yet
+      Set<Integer> newRevisions = new HashSet<Integer>();
+      for (int laterId = 0; laterId < ids.length; laterId++) {
+        if (later.countOf(laterId) > 0) {
+          ids[laterId] = revisions.intern(later.revisions.get(laterId));
+          if (countOf(ids[laterId]) == 0) {
+            newRevisions.add(ids[laterId]);
+          }
+        }
+      }
+
+      for (Map.Entry<String, RevisionSeries> laterSeries : later.testRevisionSeries.entrySet()) {
+        String testName = laterSeries.getKey();
+        RevisionSeries added = laterSeries.getValue();
+        RevisionSeries series = testRevisionSeries.get(testName);
+        if (series == null && later.revisions == revisions) {
+          // Only seen in the later builds, nothing to merge
+          testRevisionSeries.put(testName, added);
+          for (int i = 0; i < added.size(); i++) {
+            count(added.getRevisionId(i), 1);
+          }
+          continue;
+        }
+        for (int i = 0; i < added.size(); i++) {
+          int revision = ids[added.getRevisionId(i)];
+          addStats(testName, revision, added.getPass(i), added.getFail(i), added.getFlake(i),
+              series == null || newRevisions.contains(revision));
+        }
+      }
+
+      buildNumbers.addAll(later.buildNumbers);
+      if (isWindowed()) {
+        window.putAll(later.window);
+        evict();
+      }
+      return this;
+    }
+
+    /**
+     * Publish the aggregated state as a new snapshot. The builder can't be used afterwards, since
+     * the snapshot takes over its maps.
+     */
+    FlakyTestHistorySnapshot build() {
+      checkNotBuilt();
+      built = true;
+      if (revisions.size() > 2 * liveRevisions + 64) {
+        // Most revisions were dropped from the history, don't keep them in the dictionary
+        compact();
+      }
+      return new FlakyTestHistorySnapshot(testRevisionSeries, allTests, allTestsBuildNumber,
+          revisions, revisionCounts, liveRevisions, buildNumbers, windowBuilds, windowDays,
+          window, newestTimestamp);
+    }
+
+    private boolean isWindowed() {
+      return windowBuilds > 0 || windowDays > 0;
+    }
+
+    private int countOf(int revision) {
+      return revision < revisionCounts.length ? revisionCounts[revision] : 0;
+    }
+
+    private void count(int revision, int delta) {
+      if (revision >= revisionCounts.length) {
+        revisionCounts = Arrays.copyOf(revisionCounts,
+            Math.max(revision + 1, revisionCounts.length * 2));
+      }
+      int count = revisionCounts[revision];
+      revisionCounts[revision] = count + delta;
+      if (count == 0) {
+        liveRevisions++;
+      } else if (count + delta == 0) {
+        liveRevisions--;
+      }
+    }
+
+    private void addStats(String testName, int revision, int pass, int fail, int flake,
+        boolean newRevision) {
+      RevisionSeries series = testRevisionSeries.get(testName);
+      if (series == null) {
+        series = RevisionSeries.empty(revisions);
+      }
+      RevisionSeries merged = series.with(revision, pass, fail, flake, newRevision);
+      if (merged.size() > series.size()) {
+        count(revision, 1);
+      }
+      testRevisionSeries.put(testName, merged);
+    }
+
+    /**
+     * Move the series to a new dictionary which only has the revisions still in the history
+     */
+    private void compact() {
+      Revisions compacted = new Revisions();
+      int[] compactedCounts = new int[liveRevisions];
+      for (Map.Entry<String, RevisionSeries> entry : testRevisionSeries.entrySet()) {
+        RevisionSeries series = entry.getValue().translate(compacted);
+        for (int i = 0; i < series.size(); i++) {
+          compactedCounts[series.getRevisionId(i)]++;
+        }
+        entry.setValue(series);
+      }
+      revisions = compacted;
+      revisionCounts = compactedCounts;
+    }
+
+    /**
+     * Remove the oldest builds from the history while it doesn't fit in the window. The age of
+     * builds is relative to the newest build, so the history only changes when builds are added.
+     */
+    private void evict() {
+      long oldestTimestamp = windowDays > 0
+          ? newestTimestamp - TimeUnit.DAYS.toMillis(windowDays) : Long.MIN_VALUE;
+      while (!window.isEmpty()) {
+        BuildStats oldest = window.firstEntry().getValue();
+        if ((windowBuilds == 0 || window.size() <= windowBuilds)
+            && oldest.getTimestamp() >= oldestTimestamp) {
+          break;
+        }
+        remove(oldest.getBuildNumber(), oldest.getTestFlakyStatsMap());
+      }
+    }
+
+    private void checkNotBuilt() {
+      if (built) {
+        throw new IllegalStateException("Snapshot has already been built");
+      }
+    }
+  }
+
+  /**
+   * Persistent list of the flaky stats of one test for each revision, in the order the revisions
+   * were first seen. Revisions are stored as ids of a {@link Revisions} dictionary and stats as
+   * pass, fail and flake counts in a primitive array. Stats for the latest revision are kept apart
+   * from the others, so merging a build into the latest revision or starting a new revision
+   * doesn't copy the series: older series only read the slots of the shared arrays which existed
+   * when they were created, and new slots are only claimed once by the newest series. The summary
+   * over revisions is updated along with the revision whose stats changed, so it never has to be
+   * folded again.
+   */
+  static final class RevisionSeries {
+
+    private static final int[] NO_INTS = new int[0];
+
+    /**
+     * Number of counts stored for each revision: pass, fail and flake
+     */
+    private static final int FIELDS = 3;
+
+    private static final int UNKNOWN = 0;
+
+    private static final int PASSED = 1;
+
+    private static final int FAILED = 2;
+
+    private static final int FLAKED = 3;
+
+    private final Revisions dictionary;
+
+    private final int[] revisions;
+
+    private final int[] counts;
+
+    /**
+     * Number of slots of the arrays used by this series, excluding the latest revision
+     */
+    private final int prefixSize;
+
+    /**
+     * Number of slots of the arrays claimed by any series sharing them
+     */
+    private final AtomicInteger claimed;
+
+    /**
+     * Id of the latest revision, or -1 for an empty series
+     */
+    private final int lastRevision;
+
+    private final int lastPass;
+
+    private final int lastFail;
+
+    private final int lastFlake;
+
+    /**
+     * Number of revisions at which the test passed, failed or flaked
+     */
+    private final SingleTestFlakyStats summary;
+
+    private RevisionSeries(Revisions dictionary, int[] revisions, int[] counts, int prefixSize,
+        AtomicInteger claimed, int lastRevision, int lastPass, int lastFail, int lastFlake,
+        SingleTestFlakyStats summary) {
+      this.dictionary = dictionary;
+      this.revisions = revisions;
+      this.counts = counts;
+      this.prefixSize = prefixSize;
+      this.claimed = claimed;
+      this.lastRevision = lastRevision;
+      this.lastPass = lastPass;
+      this.lastFail = lastFail;
+      this.lastFlake = lastFlake;
+      this.summary = summary;
+    }
+
+    static RevisionSeries empty(Revisions dictionary) {
+      return new RevisionSeries(dictionary, NO_INTS, NO_INTS, 0, new AtomicInteger(), -1, 0, 0, 0,
+          new SingleTestFlakyStats(0, 0, 0));
+    }
+
+    int size() {
+      return lastRevision < 0 ? prefixSize : prefixSize + 1;
+    }
+
+    int getRevisionId(int index) {
+      return index < prefixSize ? revisions[index] : lastRevision;
+    }
+
+    String getRevision(int index) {
+      return dictionary.get(getRevisionId(index));
+    }
+
+    int getPass(int index) {
+      return index < prefixSize ? counts[index * FIELDS] : lastPass;
+    }
+
+    int getFail(int index) {
+      return index < prefixSize ? counts[index * FIELDS + 1] : lastFail;
+    }
+
+    int getFlake(int index) {
+      return index < prefixSize ? counts[index * FIELDS + 2] : lastFlake;
+    }
+
+    SingleTestFlakyStats getSummary() {
+      return summary;
+    }
+
+    /**
+     * Get a series with the given stats merged into a revision
+     *
+     * @param revision id of the revision of the stats
+     * @param pass number of passes to merge
+     * @param fail number of fails to merge
+     * @param flake number of flakes to merge
+     * @param newRevision true if the revision isn't in this series, e.g. because it was never
+     * seen before by any test
+     * @return the new series, this series is left unchanged
+     */
+    RevisionSeries with(int revision, int pass, int fail, int flake, boolean newRevision) {
+      if (!newRevision) {
+        int index = indexOf(revision);
+        if (index >= 0) {
+          return replace(index, getPass(index) + pass, getFail(index) + fail,
+              getFlake(index) + flake);
+        }
+      }
+
+      // First stats of this revision for the test
+      SingleTestFlakyStats newSummary = updateSummary(UNKNOWN, classify(pass, fail, flake));
+      if (lastRevision < 0) {
+        return new RevisionSeries(dictionary, revisions, counts, prefixSize, claimed, revision,
+            pass, fail, flake, newSummary);
+      }
+      if (prefixSize < revisions.length && claimed.compareAndSet(prefixSize, prefixSize + 1)) {
+        storeLast(revisions, counts);
+        return new RevisionSeries(dictionary, revisions, counts, prefixSize + 1, claimed,
+            revision, pass, fail, flake, newSummary);
+      }
+      int capacity = Math.max(4, prefixSize * 2);
+      int[] newRevisions = Arrays.copyOf(revisions, capacity);
+      int[] newCounts = Arrays.copyOf(counts, capacity * FIELDS);
+      storeLast(newRevisions, newCounts);
+      return new RevisionSeries(dictionary, newRevisions, newCounts, prefixSize + 1,
+          new AtomicInteger(prefixSize + 1), revision, pass, fail, flake, newSummary);
+    }
+
+    /**
+     * Get a series with the given stats subtracted from a revision. The revision is dropped once
+     * it has no stats left.
+     *
+     * @param revision id of the revision of the stats
+     * @param pass number of passes to subtract
+     * @param fail number of fails to subtract
+     * @param flake number of flakes to subtract
+     * @return the new series, this series is left unchanged
+     */
+    RevisionSeries without(int revision, int pass, int fail, int flake) {
+      int index = indexOf(revision);
+      if (index < 0) {
+        return this;
+      }
+      int newPass = Math.max(0, getPass(index) - pass);
+      int newFail = Math.max(0, getFail(index) - fail);
+      int newFlake = Math.max(0, getFlake(index) - flake);
+      if (newPass != 0 || newFail != 0 || newFlake != 0) {
+        return replace(index, newPass, newFail, newFlake);
+      }
+
+      SingleTestFlakyStats newSummary = updateSummary(
+          classify(getPass(index), getFail(index), getFlake(index)), UNKNOWN);
+      if (index == prefixSize) {
+        // The latest revision is dropped, the one before it takes its place
+        if (prefixSize == 0) {
+          return new RevisionSeries(dictionary, revisions, counts, 0, claimed, -1, 0, 0, 0,
+              newSummary);
+        }
+        int last = prefixSize - 1;
+        return new RevisionSeries(dictionary, revisions, counts, last, claimed, revisions[last],
+            counts[last * FIELDS], counts[last * FIELDS + 1], counts[last * FIELDS + 2],
+            newSummary);
+      }
+      int[] newRevisions = new int[Math.max(4, prefixSize)];
+      int[] newCounts = new int[newRevisions.length * FIELDS];
+      System.arraycopy(revisions, 0, newRevisions, 0, index);
+      System.arraycopy(counts, 0, newCounts, 0, index * FIELDS);
+      System.arraycopy(revisions, index + 1, newRevisions, index, prefixSize - index - 1);
+      System.arraycopy(counts, (index + 1) * FIELDS, newCounts, index * FIELDS,
+          (prefixSize - index - 1) * FIELDS);
+      return new RevisionSeries(dictionary, newRevisions, newCounts, prefixSize - 1,
+          new AtomicInteger(prefixSize - 1), lastRevision, lastPass, lastFail, lastFlake,
+          newSummary);
+    }
+
+    /**
+     * Get the same series with the ids of another dictionary
+     *
+     * @param target the dictionary to use
+     * @return the series using the target dictionary
+     */
+    RevisionSeries translate(Revisions target) {
+      if (target == dictionary) {
+        return this;
+      }
+      RevisionSeries translated = empty(target);
+      for (int i = 0; i < size(); i++) {
+        translated = translated.with(target.intern(getRevision(i)), getPass(i), getFail(i),
+            getFlake(i), true);
+      }
+      return translated;
+    }
+
+    /**
+     * Get the stats of each revision, in the order the revisions were first seen
+     *
+     * @return a new map between revision and the stats of the test at that revision
+     */
+    Map<String, SingleTestFlakyStats> asMap() {
+      Map<String, SingleTestFlakyStats> map = new LinkedHashMap<String, SingleTestFlakyStats>();
+      for (int i = 0; i < size(); i++) {
+        map.put(getRevision(i), new SingleTestFlakyStats(getPass(i), getFail(i), getFlake(i)));
+      }
+      return map;
+    }
+
+    private int indexOf(int revision) {
+      if (revision == lastRevision) {
+        return prefixSize;
+      }
+      for (int i = prefixSize - 1; i >= 0; i--) {
+        if (revisions[i] == revision) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Move the latest revision to the first free slot of the given arrays
+     */
+    private void storeLast(int[] targetRevisions, int[] targetCounts) {
+      targetRevisions[prefixSize] = lastRevision;
+      targetCounts[prefixSize * FIELDS] = lastPass;
+      targetCounts[prefixSize * FIELDS + 1] = lastFail;
+      targetCounts[prefixSize * FIELDS + 2] = lastFlake;
+    }
+
+    /**
+     * Get a series with the stats of the revision at the given index replaced
+     */
+    private RevisionSeries replace(int index, int pass, int fail, int flake) {
+      SingleTestFlakyStats newSummary = updateSummary(
+          classify(getPass(index), getFail(index), getFlake(index)), classify(pass, fail, flake));
+      if (index == prefixSize) {
+        return new RevisionSeries(dictionary, revisions, counts, prefixSize, claimed,
+            lastRevision, pass, fail, flake, newSummary);
+      }
+      int[] copiedRevisions = Arrays.copyOf(revisions, prefixSize);
+      int[] copiedCounts = Arrays.copyOf(counts, prefixSize * FIELDS);
+      copiedCounts[index * FIELDS] = pass;
+      copiedCounts[index * FIELDS + 1] = fail;
+      copiedCounts[index * FIELDS + 2] = flake;
+      return new RevisionSeries(dictionary, copiedRevisions, copiedCounts, prefixSize,
+          new AtomicInteger(prefixSize), lastRevision, lastPass, lastFail, lastFlake, newSummary);
+    }
+
+    /**
+     * Get the summary after one revision moved from a class to another
+     *
+     * @param oldClass previous class of the revision, {@link #UNKNOWN} for a new revision
+     * @param newClass new class of the revision, {@link #UNKNOWN} for a dropped revision
+     * @return the new summary, this summary if the class didn't change
+     */
+    private SingleTestFlakyStats updateSummary(int oldClass, int newClass) {
+      if (oldClass == newClass) {
+        return summary;
+      }
+      SingleTestFlakyStats updated = new SingleTestFlakyStats(summary);
+      count(updated, oldClass, -1);
+      count(updated, newClass, 1);
+      return updated;
+    }
+
+    /**
+     * Classify stats the same way
+     * {@link HistoryAggregatedFlakyTestResultAction#REVISION_STATS_MAP_TO_AGGREGATED_STATS} does
+     */
+    private static int classify(int pass, int fail, int flake) {
+      if (pass > 0 && fail == 0 && flake == 0) {
+        return PASSED;
+      } else if ((pass > 0 && fail > 0) || flake > 0) {
+        return FLAKED;
+      } else if (fail > 0 && pass == 0) {
+        return FAILED;
+      }
+      return UNKNOWN;
+    }
+
+    private static void count(SingleTestFlakyStats summary, int revisionClass, int delta) {
+      if (revisionClass == PASSED) {
+        summary.pass += delta;
+      } else if (revisionClass == FLAKED) {
+        summary.flake += delta;
+      } else if (revisionClass == FAILED) {
+        summary.fail += delta;
+      }
+    }
+  }
+}
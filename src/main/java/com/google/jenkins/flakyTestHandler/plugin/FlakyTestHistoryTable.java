@@ -0,0 +1,183 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One page of the Flaky History table. The tests are sorted and filtered on the server, so the
+ * job page only renders the rows it shows however many tests the job has.
+ */
+final class FlakyTestHistoryTable {
+
+  static final int DEFAULT_PAGE_SIZE = 50;
+
+  static final int MAX_PAGE_SIZE = 500;
+
+  /**
+   * Columns the table can be sorted by
+   */
+  enum SortKey {
+    NAME,
+    PASSES,
+    FAILS,
+    FLAKES,
+    FLAKE_RATE;
+
+    /**
+     * Parse the sort key of a request
+     *
+     * @param value the requested key, case insensitive
+     * @return the key, or {@link #NAME} if it is missing or unknown
+     */
+    static SortKey parse(String value) {
+      if (value != null) {
+        for (SortKey key : values()) {
+          if (key.name().equalsIgnoreCase(value)) {
+            return key;
+          }
+        }
+      }
+      return NAME;
+    }
+  }
+
+  private final int total;
+
+  private final int start;
+
+  private final List<Map.Entry<String, SingleTestFlakyStats>> rows;
+
+  private FlakyTestHistoryTable(int total, int start,
+      List<Map.Entry<String, SingleTestFlakyStats>> rows) {
+    this.total = total;
+    this.start = start;
+    this.rows = rows;
+  }
+
+  /**
+   * Number of tests matching the filter
+   */
+  int getTotal() {
+    return total;
+  }
+
+  /**
+   * Index of the first row of the page among the tests matching the filter
+   */
+  int getStart() {
+    return start;
+  }
+
+  List<Map.Entry<String, SingleTestFlakyStats>> getRows() {
+    return rows;
+  }
+
+  /**
+   * Sort the stats of the tests
+   *
+   * @param stats map between test name and its aggregated flaky stats
+   * @param key column to sort by
+   * @param descending whether to sort from the highest value
+   * @return the sorted entries, tests with the same value are sorted by name
+   */
+  static List<Map.Entry<String, SingleTestFlakyStats>> sort(
+      Map<String, SingleTestFlakyStats> stats, SortKey key, boolean descending) {
+    List<Map.Entry<String, SingleTestFlakyStats>> sorted =
+        new ArrayList<Map.Entry<String, SingleTestFlakyStats>>(stats.entrySet());
+    Collections.sort(sorted, comparator(key, descending));
+    return Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * Get one page of sorted tests whose name contains the filter
+   *
+   * @param sorted the sorted entries
+   * @param filter substring of the test names to keep, case insensitive, or null to keep all
+   * @param start index of the first row among the tests matching the filter
+   * @param size maximal number of rows
+   * @return the page
+   */
+  static FlakyTestHistoryTable page(List<Map.Entry<String, SingleTestFlakyStats>> sorted,
+      String filter, int start, int size) {
+    start = Math.max(0, start);
+    size = Math.min(MAX_PAGE_SIZE, size <= 0 ? DEFAULT_PAGE_SIZE : size);
+    if (filter == null || filter.isEmpty()) {
+      int from = Math.min(start, sorted.size());
+      return new FlakyTestHistoryTable(sorted.size(), from,
+          sorted.subList(from, Math.min(sorted.size(), from + size)));
+    }
+
+    String needle = filter.toLowerCase(Locale.ROOT);
+    List<Map.Entry<String, SingleTestFlakyStats>> rows =
+        new ArrayList<Map.Entry<String, SingleTestFlakyStats>>();
+    int total = 0;
+    for (Map.Entry<String, SingleTestFlakyStats> entry : sorted) {
+      if (entry.getKey().toLowerCase(Locale.ROOT).contains(needle)) {
+        if (total >= start && rows.size() < size) {
+          rows.add(entry);
+        }
+        total++;
+      }
+    }
+    return new FlakyTestHistoryTable(total, Math.min(start, total), rows);
+  }
+
+  private static Comparator<Map.Entry<String, SingleTestFlakyStats>> comparator(
+      final SortKey key, final boolean descending) {
+    return new Comparator<Map.Entry<String, SingleTestFlakyStats>>() {
+      @Override
+      public int compare(Map.Entry<String, SingleTestFlakyStats> a,
+          Map.Entry<String, SingleTestFlakyStats> b) {
+        int result = key == SortKey.NAME ? a.getKey().compareTo(b.getKey())
+            : compareValues(key, a.getValue(), b.getValue());
+        if (descending) {
+          result = -result;
+        }
+        return result != 0 ? result : a.getKey().compareTo(b.getKey());
+      }
+    };
+  }
+
+  private static int compareValues(SortKey key, SingleTestFlakyStats a, SingleTestFlakyStats b) {
+    switch (key) {
+      case PASSES:
+        return Integer.compare(a.getPass(), b.getPass());
+      case FAILS:
+        return Integer.compare(a.getFail(), b.getFail());
+      case FLAKES:
+        return Integer.compare(a.getFlake(), b.getFlake());
+      case FLAKE_RATE:
+        return Double.compare(flakeRate(a), flakeRate(b));
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Share of the revisions at which the test flaked
+   */
+  static double flakeRate(SingleTestFlakyStats stats) {
+    int runs = stats.getPass() + stats.getFail() + stats.getFlake();
+    return runs == 0 ? 0 : (double) stats.getFlake() / runs;
+  }
+}
@@ -0,0 +1,180 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Loads the flaky history of the jobs in the background once they are loaded at startup, so the
+ * first view of a job page doesn't have to aggregate its history. Jobs which were built most
+ * recently are loaded first, and jobs whose page is requested before they are loaded jump the
+ * queue.
+ */
+public final class FlakyTestHistoryWarmUp {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyTestHistoryWarmUp.class.getName());
+
+  /**
+   * Maximal number of histories loaded at the same time
+   */
+  static final int THREADS =
+      Math.max(1, SystemProperties.getInteger(FlakyTestHistoryWarmUp.class.getName() + ".threads",
+          2));
+
+  /**
+   * Priority of the histories requested by a page view
+   */
+  private static final long REQUESTED = Long.MAX_VALUE;
+
+  private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS,
+      60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+      new NamingThreadFactory(new DaemonThreadFactory(), "Flaky test history warm-up"));
+
+  static {
+    EXECUTOR.allowCoreThreadTimeOut(true);
+  }
+
+  private FlakyTestHistoryWarmUp() {
+  }
+
+  /**
+   * Queue the jobs publishing flaky stats for loading, from the most recently built one
+   */
+  @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+  public static void warmUp() {
+    List<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>();
+    for (AbstractProject<?, ?> project : Jenkins.get().allItems(AbstractProject.class)) {
+      if (project.getPublishersList().get(JUnitFlakyResultArchiver.class) != null) {
+        projects.add(project);
+      }
+    }
+    if (projects.isEmpty()) {
+      return;
+    }
+
+    LOGGER.log(Level.INFO, "Loading the flaky test history of {0} jobs in the background",
+        projects.size());
+    Progress progress = new Progress(projects.size());
+    List<LoadTask> tasks = new ArrayList<LoadTask>();
+    for (AbstractProject<?, ?> project : projects) {
+      Run<?, ?> lastBuild = project.getLastBuild();
+      tasks.add(new LoadTask(FlakyTestHistoryIndex.forProject(project),
+          lastBuild == null ? Long.MIN_VALUE : lastBuild.getTimeInMillis(), progress));
+    }
+    // The first tasks are started right away, before the queue orders the others
+    Collections.sort(tasks);
+    for (LoadTask task : tasks) {
+      EXECUTOR.execute(task);
+    }
+  }
+
+  /**
+   * Load the history of a job in the background ahead of the jobs queued at startup
+   *
+   * @param index the index of the job
+   */
+  static void requestLoad(FlakyTestHistoryIndex index) {
+    EXECUTOR.execute(new LoadTask(index, REQUESTED, null));
+  }
+
+  /**
+   * Loads the history of one job, tasks with the highest priority run first
+   */
+  private static final class LoadTask implements Runnable, Comparable<LoadTask> {
+
+    private final FlakyTestHistoryIndex index;
+
+    private final long priority;
+
+    /**
+     * Progress of the warm-up the task belongs to, or null if it was requested by a page view
+     */
+    private final Progress progress;
+
+    LoadTask(FlakyTestHistoryIndex index, long priority, Progress progress) {
+      this.index = index;
+      this.priority = priority;
+      this.progress = progress;
+    }
+
+    @Override
+    public void run() {
+      long start = System.currentTimeMillis();
+      if (!index.isLoaded()) {
+        try {
+          index.getHistory();
+          LOGGER.log(Level.FINE, "Loaded the flaky test history of {0} in {1} ms", new Object[] {
+              index.getProject().getFullName(), System.currentTimeMillis() - start});
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING,
+              "Failed to load the flaky test history of " + index.getProject().getFullName(), e);
+          index.loadFailed();
+        }
+      }
+      if (progress != null) {
+        progress.done();
+      }
+    }
+
+    @Override
+    public int compareTo(LoadTask that) {
+      return Long.compare(that.priority, priority);
+    }
+  }
+
+  /**
+   * Reports the progress of the warm-up to the system log
+   */
+  private static final class Progress {
+
+    private final int total;
+
+    private final AtomicInteger loaded = new AtomicInteger();
+
+    private final long start = System.currentTimeMillis();
+
+    Progress(int total) {
+      this.total = total;
+    }
+
+    void done() {
+      int count = loaded.incrementAndGet();
+      if (count == total) {
+        LOGGER.log(Level.INFO, "Loaded the flaky test history of {0} jobs in {1} ms",
+            new Object[] {total, System.currentTimeMillis() - start});
+      } else if (count % Math.max(1, total / 10) == 0) {
+        LOGGER.log(Level.INFO, "Loaded the flaky test history of {0} out of {1} jobs",
+            new Object[] {count, total});
+      }
+    }
+  }
+}
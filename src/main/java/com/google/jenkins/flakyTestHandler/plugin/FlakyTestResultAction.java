@@ -22,12 +22,16 @@ import com.thoughtworks.xstream.XStream;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,13 +54,28 @@ import jenkins.model.RunAction2;
  */
 public class FlakyTestResultAction implements RunAction2 {
 
+  static final XStream XSTREAM = new XStream2();
+
+  /**
+   * Name of the XML file the stats were saved to before {@link FlakyRunStatsFile}
+   */
+  static final String LEGACY_FILE_NAME = "junitFlakyStatsResult.xml";
+
   /**
-   * FlakyRunStats object, use WeakReference to reduce memory overhead since it will be
-   * stored on the disk
+   * Stats which are still being written to disk, read from memory until they are written
    */
-  private transient WeakReference<FlakyRunStats> flakyRunStats;
+  private transient volatile FlakyRunStats unsavedStats;
 
-  private static final XStream XSTREAM = new XStream2();
+  /**
+   * The last write of the stats, null if they were never written by this action
+   */
+  private transient Future<?> pendingSave;
+
+  /**
+   * Outcome counts of this build, saved with the build so they don't need the stats file. Null for
+   * builds recorded before the summary was kept.
+   */
+  private FlakyRunSummary summary;
 
   /**
    * This build
@@ -76,6 +95,19 @@ public class FlakyTestResultAction implements RunAction2 {
    * @param listener listener of this build
    */
   public FlakyTestResultAction(AbstractBuild build, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+    this(build, launcher, listener, 1);
+  }
+
+  /**
+   * Construct a FlakyTestResultAction object with Run and BuildListener, parsing the test reports
+   * on up to the given number of threads
+   *
+   * @param build this build
+   * @param listener listener of this build
+   * @param parsingParallelism number of report files parsed at the same time
+   */
+  public FlakyTestResultAction(AbstractBuild build, Launcher launcher, TaskListener listener,
+      int parsingParallelism) throws IOException, InterruptedException {
     this.build = build;
     // TODO consider the possibility that there is >1 such action
     AbstractTestResultAction action = build.getAction(AbstractTestResultAction.class);
@@ -86,7 +118,8 @@ public class FlakyTestResultAction implements RunAction2 {
         if(channel == null) {
           throw new InterruptedException("Could not get channel to run a program remotely.");
         }
-        FlakyTestResult flakyTestResult = channel.call(new FlakyTestResultCollector((TestResult) latestResult));
+        FlakyTestResult flakyTestResult = channel.call(
+            new FlakyTestResultCollector((TestResult) latestResult, parsingParallelism));
 
         flakyTestResult.freeze(action, build);
         FlakyRunStats stats = new FlakyRunStats(flakyTestResult.getTestFlakyStatsMap());
@@ -105,19 +138,44 @@ public class FlakyTestResultAction implements RunAction2 {
 
   }
 
+  private File getStatsFile() {
+    return new File(build.getRootDir(), FlakyRunStatsFile.FILE_NAME);
+  }
+
+  /**
+   * XML file the stats were saved to before {@link FlakyRunStatsFile}, still read for older builds
+   */
   private XmlFile getDataFile() {
-    return new XmlFile(XSTREAM,new File(build.getRootDir(), "junitFlakyStatsResult.xml"));
+    return new XmlFile(XSTREAM,new File(build.getRootDir(), LEGACY_FILE_NAME));
   }
 
   /**
    * Loads a {@link TestResult} from disk.
    */
   private FlakyRunStats load() {
+    File statsFile = getStatsFile();
+    if (statsFile.exists()) {
+      try {
+        return FlakyRunStatsFile.read(statsFile);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to read " + statsFile + ", trying the XML stats", e);
+      }
+    }
+
     FlakyRunStats stats;
     try {
       stats = (FlakyRunStats)getDataFile().read();
     } catch (IOException e) {
-      stats = new FlakyRunStats();   // return a dummy
+      if (!statsFile.exists() || getDataFile().exists()) {
+        return new FlakyRunStats();   // return a dummy
+      }
+      // Converted by FlakyStatsMigration in the meantime
+      try {
+        return FlakyRunStatsFile.read(statsFile);
+      } catch (IOException e2) {
+        logger.log(Level.WARNING, "Failed to read " + statsFile, e2);
+        return new FlakyRunStats();
+      }
     }
     return stats;
   }
@@ -147,39 +205,90 @@ public class FlakyTestResultAction implements RunAction2 {
     return null;
   }
 
+  /**
+   * Get the stats of this build. They are kept in {@link FlakyRunStatsCache} to reduce memory
+   * overhead since they are stored on the disk.
+   */
   public synchronized FlakyRunStats getFlakyRunStats() {
-    FlakyRunStats stats;
-    if (flakyRunStats == null) {
-      stats = load();
-      flakyRunStats = new WeakReference<FlakyRunStats>(stats);
-    } else {
-      stats = flakyRunStats.get();
+    FlakyRunStats stats = unsavedStats;
+    if (stats != null) {
+      return stats;
     }
-
+    stats = FlakyRunStatsCache.get(this);
     if (stats == null) {
       stats = load();
-      flakyRunStats = new WeakReference<FlakyRunStats>(stats);
+      FlakyRunStatsCache.put(this, stats);
     }
     return stats;
   }
 
   // Visible for testing
   synchronized void setFlakyRunStats(FlakyRunStats stats) {
-    flakyRunStats = new WeakReference<FlakyRunStats>(stats);
+    FlakyRunStatsCache.put(this, stats);
   }
 
   /**
-   * Overwrites the {@link FlakyRunStats} by a new data set.
+   * Overwrites the {@link FlakyRunStats} by a new data set. The data is persisted in the
+   * background by {@link FlakyRunStatsWriter}, and failures are reported to the build log once the
+   * build waits for it with {@link #waitUntilSaved}.
    */
   public synchronized void setFlakyRunStats(FlakyRunStats stats, TaskListener listener) {
-
+    summary = new FlakyRunSummary(stats);
+    unsavedStats = stats;
+    FlakyRunStatsCache.put(this, stats);
     // persist the data
+    pendingSave = FlakyRunStatsWriter.write(this, getStatsFile(), stats);
+  }
+
+  /**
+   * Get the outcome counts of this build, without reading its stats
+   *
+   * @return the summary, or null for builds recorded before the summary was kept
+   */
+  public FlakyRunSummary getSummary() {
+    return summary;
+  }
+
+  /**
+   * Whether this build flaked, see {@link FlakyRunStats#isFlaked}. Only older builds without a
+   * {@link FlakyRunSummary} need to read their stats to answer it.
+   */
+  public boolean isFlaked() {
+    FlakyRunSummary currentSummary = summary;
+    if (currentSummary != null) {
+      return currentSummary.isFlaked();
+    }
+    return getFlakyRunStats().isFlaked();
+  }
+
+  /**
+   * Called once stats have been written to disk, from then on they are read from the cache
+   */
+  void onSaved(FlakyRunStats stats) {
+    if (unsavedStats == stats) {
+      unsavedStats = null;
+    }
+  }
+
+  /**
+   * Wait for the stats to be written to disk
+   *
+   * @param listener listener of this build, told if the stats couldn't be written
+   */
+  void waitUntilSaved(TaskListener listener) throws InterruptedException {
+    Future<?> save;
+    synchronized (this) {
+      save = pendingSave;
+    }
+    if (save == null) {
+      return;
+    }
     try {
-      getDataFile().write(stats);
-    } catch (IOException e) {
-      e.printStackTrace(listener.fatalError("Failed to save the JUnit flaky test stats result"));
+      save.get();
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace(
+          listener.fatalError("Failed to save the JUnit flaky test stats result"));
     }
-    this.flakyRunStats = new WeakReference<FlakyRunStats>(stats);
   }
 
   /**
@@ -245,4 +354,82 @@ public class FlakyTestResultAction implements RunAction2 {
       return seenFlake;
     }
   }
+
+  /**
+   * Outcome counts of one run, small enough to be saved with the build. The names of the flaked
+   * and failed tests are only kept as sorted hashes, so checking a test may give a false positive
+   * but never a false negative.
+   */
+  public static class FlakyRunSummary {
+
+    private final int passCount;
+
+    private final int failCount;
+
+    private final int flakeCount;
+
+    private final int[] flakedTestHashes;
+
+    private final int[] failedTestHashes;
+
+    public FlakyRunSummary(FlakyRunStats stats) {
+      int passes = 0;
+      List<String> flaked = new ArrayList<String>();
+      List<String> failed = new ArrayList<String>();
+      Map<String, SingleTestFlakyStatsWithRevision> tests =
+          stats.getTestFlakyStatsWithRevisionMap();
+      if (tests != null) {
+        for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : tests.entrySet()) {
+          if (entry.getValue().getStats().isFailed()) {
+            failed.add(entry.getKey());
+          } else if (entry.getValue().getStats().isFlaked()) {
+            flaked.add(entry.getKey());
+          } else if (entry.getValue().getStats().isPassed()) {
+            passes++;
+          }
+        }
+      }
+      this.passCount = passes;
+      this.failCount = failed.size();
+      this.flakeCount = flaked.size();
+      this.flakedTestHashes = hash(flaked);
+      this.failedTestHashes = hash(failed);
+    }
+
+    public int getPassCount() {
+      return passCount;
+    }
+
+    public int getFailCount() {
+      return failCount;
+    }
+
+    public int getFlakeCount() {
+      return flakeCount;
+    }
+
+    /**
+     * Same as {@link FlakyRunStats#isFlaked}
+     */
+    public boolean isFlaked() {
+      return failCount == 0 && flakeCount > 0;
+    }
+
+    public boolean mayHaveFlaked(String testName) {
+      return Arrays.binarySearch(flakedTestHashes, testName.hashCode()) >= 0;
+    }
+
+    public boolean mayHaveFailed(String testName) {
+      return Arrays.binarySearch(failedTestHashes, testName.hashCode()) >= 0;
+    }
+
+    private static int[] hash(List<String> testNames) {
+      int[] hashes = new int[testNames.size()];
+      for (int i = 0; i < hashes.length; i++) {
+        hashes[i] = testNames.get(i).hashCode();
+      }
+      Arrays.sort(hashes);
+      return hashes;
+    }
+  }
 }
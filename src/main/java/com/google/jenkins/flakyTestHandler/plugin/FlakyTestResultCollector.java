@@ -1,18 +1,50 @@
 package com.google.jenkins.flakyTestHandler.plugin;
 
+import com.google.jenkins.flakyTestHandler.junit.FlakyStdioStore;
 import com.google.jenkins.flakyTestHandler.junit.FlakyTestResult;
 import hudson.tasks.junit.TestResult;
 import jenkins.security.MasterToSlaveCallable;
 
-public class FlakyTestResultCollector extends MasterToSlaveCallable<FlakyTestResult, RuntimeException> {
+import java.io.File;
+import java.io.IOException;
+
+public class FlakyTestResultCollector extends MasterToSlaveCallable<FlakyTestResult, IOException> {
     private final TestResult testResult;
+    private final int parsingParallelism;
+    private final String stdioFile;
+    private final String stdioName;
 
     public FlakyTestResultCollector(TestResult testResult) {
+        this(testResult, 1);
+    }
+
+    public FlakyTestResultCollector(TestResult testResult, int parsingParallelism) {
+        this(testResult, parsingParallelism, null, null);
+    }
+
+    /**
+     * @param stdioFile path of the file on the agent to store the stdout and stderr of the tests
+     *     in, or null to keep them in the results
+     * @param stdioName name of the file once archived in the build directory
+     */
+    public FlakyTestResultCollector(TestResult testResult, int parsingParallelism,
+            String stdioFile, String stdioName) {
         this.testResult = testResult;
+        this.parsingParallelism = parsingParallelism;
+        this.stdioFile = stdioFile;
+        this.stdioName = stdioName;
     }
 
-    public FlakyTestResult call() throws RuntimeException {
-        return new FlakyTestResult(testResult);
+    public FlakyTestResult call() throws IOException {
+        if (stdioFile == null) {
+            return new FlakyTestResult(testResult, parsingParallelism);
+        }
+        FlakyStdioStore stdioStore = new FlakyStdioStore(new File(stdioFile), stdioName);
+        try {
+            return new FlakyTestResult(testResult, parsingParallelism, stdioStore);
+        } finally {
+            stdioStore.close();
+        }
     }
 
 }
@@ -0,0 +1,372 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistorySnapshot.BuildStats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import jenkins.util.Timer;
+
+/**
+ * Append-only file merging the flaky stats of the completed builds of a job, so a history rebuild
+ * reads one file sequentially instead of opening the stats file in every build directory. A
+ * separate build-number index holds the offset and length of the record of each compacted build.
+ *
+ * <p>Builds are compacted in the background some time after they complete. The stats file of each
+ * build stays the source of truth for the builds which aren't compacted yet. A record is only
+ * committed once its index entry is written, so anything after the last index entry is discarded
+ * before appending, and the segment is forced to disk before the index entries of its records
+ * are written. Records are read through a memory mapping with {@link MappedFlakyTestStats},
+ * which also describes their layout.
+ *
+ * <p>Once builds are deleted, e.g. by the log rotator, the segment is rewritten without their
+ * records, so it only grows with the builds the job keeps.
+ */
+class FlakyTestStatsSegment {
+
+  private static final Logger LOGGER = Logger.getLogger(FlakyTestStatsSegment.class.getName());
+
+  static final String SEGMENT_FILE_NAME = "flakyTestStats.seg";
+
+  static final String SEGMENT_INDEX_FILE_NAME = "flakyTestStats.seg.idx";
+
+  /**
+   * Delay between the completion of a build and its compaction, so builds completing close to each
+   * other are compacted together
+   */
+  private static final long COMPACTION_DELAY_SECONDS = 30;
+
+  /**
+   * Size of an entry of the build-number index: build number, offset and length
+   */
+  private static final int INDEX_ENTRY_SIZE = 4 + 8 + 4;
+
+  private final AbstractProject<?, ?> project;
+
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+  /**
+   * Offset and length of the record of each compacted build, null until first read
+   */
+  private SortedMap<Integer, long[]> entries;
+
+  /**
+   * Read-only mapping of the segment, null until first mapped
+   */
+  private ByteBuffer mapped;
+
+  FlakyTestStatsSegment(AbstractProject<?, ?> project) {
+    this.project = project;
+  }
+
+  File getSegmentFile() {
+    return new File(project.getRootDir(), SEGMENT_FILE_NAME);
+  }
+
+  File getSegmentIndexFile() {
+    return new File(project.getRootDir(), SEGMENT_INDEX_FILE_NAME);
+  }
+
+  /**
+   * Compact the completed builds in the background, unless a compaction is already scheduled
+   */
+  void compactLater() {
+    if (compactionScheduled.compareAndSet(false, true)) {
+      Timer.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          compactionScheduled.set(false);
+          compact();
+        }
+      }, COMPACTION_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Append the stats of the completed builds which aren't compacted yet, first rewriting the
+   * segment without the deleted builds if there are any
+   */
+  synchronized void compact() {
+    try {
+      SortedMap<Integer, long[]> compacted = getEntries();
+      List<Integer> buildNumbers = new ArrayList<Integer>(project._getRuns().keySet());
+      Collections.sort(buildNumbers);
+      Set<Integer> existing = new HashSet<Integer>(buildNumbers);
+      if (!existing.containsAll(compacted.keySet())) {
+        rewrite(existing);
+        compacted = getEntries();
+      }
+
+      RandomAccessFile segment = new RandomAccessFile(getSegmentFile(), "rw");
+      try {
+        RandomAccessFile index = new RandomAccessFile(getSegmentIndexFile(), "rw");
+        try {
+          // Drop what was appended after the last committed record
+          long end = getEnd(compacted);
+          segment.setLength(end);
+          index.setLength((long) compacted.size() * INDEX_ENTRY_SIZE);
+          segment.seek(end);
+          index.seek(index.length());
+
+          ByteArrayOutputStream indexEntries = new ByteArrayOutputStream();
+          DataOutputStream indexOut = new DataOutputStream(indexEntries);
+          for (int buildNumber : buildNumbers) {
+            if (compacted.containsKey(buildNumber)) {
+              continue;
+            }
+            Run<?, ?> build = project.getBuildByNumber(buildNumber);
+            if (build == null || build.isBuilding()) {
+              continue;
+            }
+            byte[] record = toRecord(build);
+            segment.write(record);
+            indexOut.writeInt(buildNumber);
+            indexOut.writeLong(end);
+            indexOut.writeInt(record.length);
+            compacted.put(buildNumber, new long[] {end, record.length});
+            end += record.length;
+          }
+          if (indexEntries.size() > 0) {
+            // The records must be on disk before the index points to them
+            segment.getChannel().force(true);
+            index.write(indexEntries.toByteArray());
+            index.getChannel().force(true);
+          }
+        } finally {
+          index.close();
+        }
+      } finally {
+        segment.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING,
+          "Failed to compact the flaky stats of " + project.getFullName(), e);
+      entries = null;
+      mapped = null;
+    }
+  }
+
+  /**
+   * Replace the segment with one holding only the records of the given builds. Both files are
+   * forced to disk before they replace the old ones, and the index is deleted before the segment
+   * is replaced, so an interrupted rewrite leaves an empty index, and the builds are compacted
+   * again, rather than an index pointing into the wrong segment.
+   *
+   * @param kept the builds whose records are kept
+   * @throws IOException if the segment can't be rewritten
+   */
+  private void rewrite(Set<Integer> kept) throws IOException {
+    File segmentFile = getSegmentFile();
+    File indexFile = getSegmentIndexFile();
+    File segmentTmp = new File(segmentFile.getPath() + ".tmp");
+    File indexTmp = new File(indexFile.getPath() + ".tmp");
+    SortedMap<Integer, long[]> rewritten = new TreeMap<Integer, long[]>();
+    try {
+      RandomAccessFile in = new RandomAccessFile(segmentFile, "r");
+      try {
+        FileOutputStream segmentFileOut = new FileOutputStream(segmentTmp);
+        DataOutputStream segmentOut =
+            new DataOutputStream(new BufferedOutputStream(segmentFileOut));
+        try {
+          FileOutputStream indexFileOut = new FileOutputStream(indexTmp);
+          DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(indexFileOut));
+          try {
+            long end = 0;
+            for (Map.Entry<Integer, long[]> entry : getEntries().entrySet()) {
+              if (!kept.contains(entry.getKey())) {
+                continue;
+              }
+              byte[] record = new byte[(int) entry.getValue()[1]];
+              in.seek(entry.getValue()[0]);
+              in.readFully(record);
+              segmentOut.write(record);
+              indexOut.writeInt(entry.getKey());
+              indexOut.writeLong(end);
+              indexOut.writeInt(record.length);
+              rewritten.put(entry.getKey(), new long[] {end, record.length});
+              end += record.length;
+            }
+            segmentOut.flush();
+            segmentFileOut.getChannel().force(true);
+            indexOut.flush();
+            indexFileOut.getChannel().force(true);
+          } finally {
+            indexOut.close();
+          }
+        } finally {
+          segmentOut.close();
+        }
+      } finally {
+        in.close();
+      }
+
+      // The segment can't be replaced while it is mapped on some platforms, the mapping is dropped
+      // here and the new segment is mapped again on next read
+      entries = null;
+      mapped = null;
+      Files.deleteIfExists(indexFile.toPath());
+      Files.move(segmentTmp.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      Files.move(indexTmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      entries = rewritten;
+    } finally {
+      for (File tmp : new File[] {segmentTmp, indexTmp}) {
+        if (tmp.exists() && !tmp.delete()) {
+          LOGGER.log(Level.WARNING, "Failed to delete " + tmp);
+        }
+      }
+    }
+  }
+
+  /**
+   * Map the compacted records in memory. The mapping is shared by the callers and only replaced
+   * once the segment grew past it.
+   *
+   * @return a view of the records compacted so far
+   * @throws IOException if the segment can't be mapped
+   */
+  synchronized MappedFlakyTestStats map() throws IOException {
+    SortedMap<Integer, long[]> compacted = getEntries();
+    long end = getEnd(compacted);
+    if (end > Integer.MAX_VALUE) {
+      throw new IOException("Flaky stats segment is too large to be mapped: " + end);
+    }
+    if (mapped == null || mapped.capacity() < end) {
+      if (end == 0) {
+        mapped = ByteBuffer.allocate(0);
+      } else {
+        FileChannel channel = FileChannel.open(getSegmentFile().toPath(), StandardOpenOption.READ);
+        try {
+          mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        } finally {
+          channel.close();
+        }
+      }
+    }
+    return new MappedFlakyTestStats(mapped, new TreeMap<Integer, long[]>(compacted));
+  }
+
+  /**
+   * Read the stats of all the compacted builds in one pass
+   *
+   * @return map between build number and its stats, or null for the compacted builds without
+   *     stats
+   */
+  synchronized Map<Integer, BuildStats> readAll() {
+    Map<Integer, BuildStats> builds = new HashMap<Integer, BuildStats>();
+    try {
+      MappedFlakyTestStats records = map();
+      for (int buildNumber : records.getBuildNumbers()) {
+        builds.put(buildNumber, records.getBuildStats(buildNumber));
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Flaky stats segment of " + project.getFullName()
+          + " is corrupt, recompacting it", e);
+      delete();
+      builds.clear();
+    }
+    return builds;
+  }
+
+  /**
+   * Delete the segment, its builds are compacted again on next compaction
+   */
+  synchronized void delete() {
+    entries = null;
+    mapped = null;
+    for (File file : new File[] {getSegmentFile(), getSegmentIndexFile()}) {
+      if (file.exists() && !file.delete()) {
+        LOGGER.log(Level.WARNING, "Failed to delete " + file);
+      }
+    }
+  }
+
+  private SortedMap<Integer, long[]> getEntries() throws IOException {
+    if (entries == null) {
+      SortedMap<Integer, long[]> read = new TreeMap<Integer, long[]>();
+      File file = getSegmentIndexFile();
+      if (file.exists()) {
+        long segmentLength = getSegmentFile().length();
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+          // A partially written entry at the end is ignored
+          long count = file.length() / INDEX_ENTRY_SIZE;
+          for (long i = 0; i < count; i++) {
+            int buildNumber = in.readInt();
+            long offset = in.readLong();
+            int length = in.readInt();
+            if (offset + length > segmentLength) {
+              // The segment was cut short, e.g. by a crash, so this entry and the ones appended
+              // after it are dropped, and their builds compacted again
+              LOGGER.log(Level.WARNING, "Flaky stats segment of " + project.getFullName()
+                  + " ends before the record of build #" + buildNumber);
+              break;
+            }
+            read.put(buildNumber, new long[] {offset, length});
+          }
+        } finally {
+          in.close();
+        }
+      }
+      entries = read;
+    }
+    return entries;
+  }
+
+  private static long getEnd(SortedMap<Integer, long[]> compacted) {
+    long end = 0;
+    for (long[] entry : compacted.values()) {
+      end = Math.max(end, entry[0] + entry[1]);
+    }
+    return end;
+  }
+
+  private static byte[] toRecord(Run<?, ?> build) throws IOException {
+    return MappedFlakyTestStats.toRecord(build.getNumber(),
+        FlakyTestHistoryAggregator.RUN_TO_BUILD_STATS.apply(build));
+  }
+}
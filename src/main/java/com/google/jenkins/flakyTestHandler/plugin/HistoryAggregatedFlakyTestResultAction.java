@@ -15,36 +15,31 @@
 package com.google.jenkins.flakyTestHandler.plugin;
 
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
 import com.google.common.collect.Maps;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistorySnapshot.RevisionSeries;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistoryTable.SortKey;
 import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
 import com.google.jenkins.flakyTestHandler.plugin.deflake.DeflakeCause;
 
 import jakarta.annotation.Nonnull;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.GET;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.Stack;
-import java.util.TreeMap;
 
 import jakarta.servlet.ServletException;
-import jenkins.triggers.SCMTriggerItem;
+import jakarta.servlet.http.HttpServletResponse;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
-import hudson.model.Job;
 import hudson.model.Run;
-import hudson.plugins.git.GitSCM;
-import hudson.plugins.git.Revision;
-import hudson.plugins.git.util.BuildData;
-import hudson.scm.SCM;
 
 /**
  * Action for aggregate and display information for flaky history for all the tests
@@ -59,32 +54,50 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
   AbstractProject<?, ?> project;
 
   /**
-   * Map between test name and flaky stats for a single test
+   * Latest published state of the flaky history. Builds are aggregated into the next snapshot
+   * under the lock of this action, while readers keep using the snapshot they already got.
    */
-  Map<String, SingleTestFlakyStats> aggregatedFlakyStats;
+  private transient volatile FlakyTestHistorySnapshot snapshot;
 
   /**
-   * Map between test name and the map between each scm revision and its running stats (# passes + #
-   * fails)
+   * Request parameter of the job page to show all the tests instead of only the flaky ones
    */
-  Map<String, Map<String, SingleTestFlakyStats>> aggregatedTestFlakyStatsWithRevision;
+  static final String SHOW_ALL_TESTS_PARAMETER = "showAllTests";
 
   /**
-   * The set of all tests being run in last non-deflake build
+   * Prefix of the entity tags of the table data, so tags of an earlier run of the controller don't
+   * match the snapshots of this one
    */
-  Set<String> allTests;
+  private static final String ETAG_PREFIX = Long.toHexString(System.currentTimeMillis());
 
   /**
-   * Whether to only show flaky tests or all tests
+   * Whether the history is still being loaded, in which case it isn't shown yet
    */
-  boolean onlyShowFlakyTests;
+  private transient volatile boolean loading;
+
+  /**
+   * Flaky tests of the last sorted table, reused until the history or the sort changes
+   */
+  private transient volatile SortedTests sortedFlakyTests;
+
+  /**
+   * All the tests of the last sorted table, reused until the history or the sort changes
+   */
+  private transient volatile SortedTests sortedAllTests;
 
   public HistoryAggregatedFlakyTestResultAction(AbstractProject<?, ?> project) {
+    this(project, FlakyTestHistorySnapshot.EMPTY);
+  }
+
+  HistoryAggregatedFlakyTestResultAction(AbstractProject<?, ?> project,
+      FlakyTestHistorySnapshot snapshot) {
     this.project = project;
-    this.aggregatedTestFlakyStatsWithRevision = new TreeMap<String, Map<String, SingleTestFlakyStats>>();
-    this.aggregatedFlakyStats = new TreeMap<String, SingleTestFlakyStats>();
-    this.allTests = new HashSet<String>();
-    this.onlyShowFlakyTests = true;
+    this.snapshot = snapshot;
+  }
+
+  protected Object readResolve() {
+    snapshot = FlakyTestHistorySnapshot.EMPTY;
+    return this;
   }
 
   /**
@@ -92,15 +105,10 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
    */
   void aggregate() {
 
-    // set of all the previous builds
-    Stack<Run> builds = new Stack<>();
-    for (Run<?, ?> build : project._getRuns().values()) {
-      builds.push(build);
-    }
-
-    while (!builds.empty()) {
-      aggregateOneBuild(builds.pop());
-    }
+    // Aggregate from the oldest build to the newest one
+    List<Run<?, ?>> builds = new ArrayList<Run<?, ?>>(project._getRuns().values());
+    Collections.reverse(builds);
+    setSnapshot(FlakyTestHistoryAggregator.aggregate(builds));
   }
 
   /**
@@ -110,64 +118,143 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
    * @param build the build to be aggregated
    */
   public void aggregateOneBuild(Run<?, ?> build) {
-    FlakyTestResultAction action = build.getAction(FlakyTestResultAction.class);
-    if (action == null) {
+    Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap = getTestFlakyStatsMap(build);
+
+    if (testFlakyStatsMap == null) {
       return;
     }
 
-    FlakyRunStats runStats = action.getFlakyRunStats();
+    aggregateRunStats(build.getNumber(), isDeflakeBuild(build), build.getTimeInMillis(),
+        testFlakyStatsMap);
+  }
 
-    if (runStats == null) {
-      return;
-    }
+  /**
+   * Aggregate the flaky stats of one build, which may have been read from the build itself or
+   * from the {@link FlakyTestHistoryIndex} of the project, and publish the resulting snapshot
+   *
+   * @param buildNumber number of the build the stats belong to
+   * @param isDeflake whether the build is a deflake build
+   * @param timestamp time the build was scheduled at
+   * @param testFlakyStatsMap map between test name and its flaky stats in that build
+   */
+  synchronized void aggregateRunStats(int buildNumber, boolean isDeflake, long timestamp,
+      Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap) {
+    snapshot = new FlakyTestHistorySnapshot.Builder(snapshot)
+        .add(buildNumber, isDeflake, timestamp, testFlakyStatsMap)
+        .build();
+  }
 
-    Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap = runStats.getTestFlakyStatsWithRevisionMap();
+  /**
+   * Subtract the flaky stats of a deleted build and publish the resulting snapshot. If the build
+   * was the last non-deflake build, all tests are taken from the previous non-deflake build.
+   *
+   * @param buildNumber number of the deleted build
+   * @param testFlakyStatsMap map between test name and its flaky stats in that build
+   */
+  synchronized void removeRunStats(int buildNumber,
+      Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap) {
+    FlakyTestHistorySnapshot.Builder builder = new FlakyTestHistorySnapshot.Builder(snapshot)
+        .remove(buildNumber, testFlakyStatsMap);
+    if (builder.getAllTestsBuildNumber() < 0) {
+      takeAllTestsFromLatestBuild(builder, buildNumber);
+    }
+    snapshot = builder.build();
+  }
 
-    if (testFlakyStatsMap == null) {
-      // Skip old build which doesn't have the map
-      return;
+  /**
+   * Take all tests from the last non-deflake build of the project if the history lost track of
+   * them, e.g. because that build was deleted while the history wasn't loaded
+   */
+  synchronized void restoreAllTests() {
+    if (snapshot.getAllTestsBuildNumber() < 0 && !snapshot.getBuildNumbers().isEmpty()) {
+      FlakyTestHistorySnapshot.Builder builder = new FlakyTestHistorySnapshot.Builder(snapshot);
+      if (takeAllTestsFromLatestBuild(builder, -1)) {
+        snapshot = builder.build();
+      }
     }
+  }
 
-    if (build.getCause(DeflakeCause.class) == null) {
-      // This is a non-deflake build, update allTests
-      allTests = testFlakyStatsMap.keySet();
+  /**
+   * Set all tests from the newest aggregated non-deflake build
+   *
+   * @param builder the history to update
+   * @param excludedBuildNumber number of a build to ignore, e.g. because it is being deleted
+   * @return true if such a build was found
+   */
+  private boolean takeAllTestsFromLatestBuild(FlakyTestHistorySnapshot.Builder builder,
+      int excludedBuildNumber) {
+    if (project == null) {
+      return false;
     }
+    for (Run<?, ?> build : project.getBuilds()) {
+      if (build.getNumber() == excludedBuildNumber || !builder.contains(build.getNumber())
+          || isDeflakeBuild(build)) {
+        continue;
+      }
+      Map<String, SingleTestFlakyStatsWithRevision> testFlakyStatsMap = getTestFlakyStatsMap(build);
+      if (testFlakyStatsMap != null) {
+        builder.setAllTests(build.getNumber(), testFlakyStatsMap.keySet());
+        return true;
+      }
+    }
+    return false;
+  }
 
-    for (Map.Entry<String, SingleTestFlakyStatsWithRevision> testFlakyStat : testFlakyStatsMap.entrySet()) {
-      String testName = testFlakyStat.getKey();
-      String revision = testFlakyStat.getValue().getRevision();
-      SingleTestFlakyStats stats = testFlakyStat.getValue().getStats();
+  /**
+   * Replace the whole history, e.g. after it was aggregated again with another window
+   *
+   * @param snapshot the new history
+   */
+  synchronized void setSnapshot(FlakyTestHistorySnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
 
-      if (aggregatedTestFlakyStatsWithRevision.containsKey(testName)) {
-        Map<String, SingleTestFlakyStats> testFlakyStatMap = aggregatedTestFlakyStatsWithRevision.get(testName);
+  /**
+   * Get the flaky stats recorded for a build
+   *
+   * @param build the build to get flaky stats for
+   * @return map between test name and its flaky stats, or null if the build has no flaky stats
+   */
+  static Map<String, SingleTestFlakyStatsWithRevision> getTestFlakyStatsMap(Run<?, ?> build) {
+    FlakyTestResultAction action = build.getAction(FlakyTestResultAction.class);
+    if (action == null) {
+      return null;
+    }
 
-        if (testFlakyStatMap.containsKey(revision)) {
-          // Merge flaky stats with the same test and the same revision
-          testFlakyStatMap.get(revision).merge(stats);
-        } else {
-          // First specific revision flaky stat for a given test
-          testFlakyStatMap.put(revision, new SingleTestFlakyStats(stats));
-        }
-      } else {
-        // The first test entry
-        Map<String, SingleTestFlakyStats> testFlakyStatMap = new LinkedHashMap<String, SingleTestFlakyStats>();
-        testFlakyStatMap.put(revision, new SingleTestFlakyStats(stats));
-        aggregatedTestFlakyStatsWithRevision.put(testName, testFlakyStatMap);
+    FlakyRunStats runStats = action.getFlakyRunStats();
 
-      }
+    if (runStats == null) {
+      return null;
     }
 
-    aggregatedFlakyStats = Maps.filterKeys(
-        Maps.transformValues(aggregatedTestFlakyStatsWithRevision, REVISION_STATS_MAP_TO_AGGREGATED_STATS),
-        Predicates.in(allTests));
+    // Old builds don't have the map
+    return runStats.getTestFlakyStatsWithRevisionMap();
   }
 
+  static boolean isDeflakeBuild(Run<?, ?> build) {
+    return build.getCause(DeflakeCause.class) != null;
+  }
+
+  FlakyTestHistorySnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Get the map between test name and the map between each scm revision and its running stats
+   * (# passes + # fails). The returned map is a read-only view of the current snapshot.
+   *
+   * @return map between test name and its stats for each revision
+   */
   public Map<String, Map<String, SingleTestFlakyStats>> getAggregatedTestFlakyStatsWithRevision() {
-    return aggregatedTestFlakyStatsWithRevision;
+    return Maps.transformValues(snapshot.getTestRevisionSeries(), REVISION_SERIES_TO_STATS_MAP);
   }
 
-  public boolean getOnlyShowFlakyTests() {
-    return onlyShowFlakyTests;
+  public boolean isLoading() {
+    return loading;
+  }
+
+  void setLoading(boolean loading) {
+    this.loading = loading;
   }
 
   /**
@@ -193,34 +280,134 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
     }
   };
 
+  /**
+   * Function to get the stats of a test for each revision
+   */
+  private static final Function<RevisionSeries, Map<String, SingleTestFlakyStats>> REVISION_SERIES_TO_STATS_MAP = new Function<RevisionSeries, Map<String, SingleTestFlakyStats>>() {
+    @Override
+    @Nonnull
+    public Map<String, SingleTestFlakyStats> apply(@Nonnull RevisionSeries revisionSeries) {
+      return revisionSeries.asMap();
+    }
+  };
+
+  /**
+   * Show all the tests on the job page. Which tests are shown is a parameter of the page rather
+   * than a state of this action, so a user choosing it doesn't change the page of everyone else.
+   */
   public void doShowAll(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException, ServletException {
-    onlyShowFlakyTests = !onlyShowFlakyTests;
-    rsp.sendRedirect("..");
+    rsp.sendRedirect("..?" + SHOW_ALL_TESTS_PARAMETER + "=true");
   }
 
+  /**
+   * Get the map between test name and flaky stats over revisions, for all the tests run in the
+   * last non-deflake build. The stats are maintained as builds are aggregated, so reading them
+   * doesn't go through the stats of each revision.
+   *
+   * @return map between test name and its aggregated flaky stats
+   */
   public Map<String, SingleTestFlakyStats> getAggregatedFlakyStats() {
-    return aggregatedFlakyStats;
+    return snapshot.getAggregatedFlakyStats();
+  }
+
+  /**
+   * Get the tests displayed on the project page by default, which are the flaky tests
+   *
+   * @return the flaky tests
+   */
+  public Map<String, SingleTestFlakyStats> getFilteredAggregatedFlakyStats() {
+    return getFilteredAggregatedFlakyStats(false);
   }
 
   /**
    * Get filtered tests to display on the project page. Users can decide whether to show all tests
    * or just flaky tests
    *
+   * @param showAllTests whether to show all tests rather than just flaky tests
    * @return the filtered tests
    */
-  public Map<String, SingleTestFlakyStats> getFilteredAggregatedFlakyStats() {
-    Predicate<Entry<String, SingleTestFlakyStats>> flakyTestsFilter;
-    if (onlyShowFlakyTests) {
-      flakyTestsFilter = new Predicate<Entry<String, SingleTestFlakyStats>>() {
-        @Override
-        public boolean apply(Entry<String, SingleTestFlakyStats> singleTestFlakyStatsEntry) {
-          return singleTestFlakyStatsEntry.getValue().getFlake() > 0;
-        }
-      };
-    } else {
-      flakyTestsFilter = Predicates.alwaysTrue();
+  public Map<String, SingleTestFlakyStats> getFilteredAggregatedFlakyStats(boolean showAllTests) {
+    return getFilteredAggregatedFlakyStats(snapshot, showAllTests);
+  }
+
+  private static Map<String, SingleTestFlakyStats> getFilteredAggregatedFlakyStats(
+      FlakyTestHistorySnapshot snapshot, boolean showAllTests) {
+    return showAllTests ? snapshot.getAggregatedFlakyStats()
+        : snapshot.getFlakyAggregatedFlakyStats();
+  }
+
+  /**
+   * Serve one page of the Flaky History table as JSON. Only the tests shown by
+   * {@link #getFilteredAggregatedFlakyStats(boolean)} are paged. The response is tagged with the
+   * snapshot it was computed from, so it is only sent again once the history changes.
+   *
+   * @param showAllTests whether to page all tests rather than just flaky tests
+   * @param sort column to sort by, one of name, passes, fails, flakes or flake_rate
+   * @param descending whether to sort from the highest value
+   * @param filter substring of the test names to show, case insensitive
+   * @param start index of the first test to show
+   * @param size maximal number of tests to show
+   */
+  @GET
+  public void doTableData(StaplerRequest2 req, StaplerResponse2 rsp,
+      @QueryParameter boolean showAllTests, @QueryParameter String sort,
+      @QueryParameter boolean descending, @QueryParameter String filter,
+      @QueryParameter int start, @QueryParameter int size) throws IOException {
+    FlakyTestHistorySnapshot current = snapshot;
+    boolean currentlyLoading = loading;
+    if (!currentlyLoading) {
+      // The parameters are part of the URL, so the tag only has to identify the history
+      String etag = "\"" + ETAG_PREFIX + "-" + current.getGeneration() + "\"";
+      rsp.setHeader("ETag", etag);
+      rsp.setHeader("Cache-Control", "private, no-cache");
+      if (etag.equals(req.getHeader("If-None-Match"))) {
+        rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+    }
+
+    FlakyTestHistoryTable table = FlakyTestHistoryTable.page(
+        getSortedTests(current, showAllTests, SortKey.parse(sort), descending), filter, start,
+        size);
+
+    JSONArray tests = new JSONArray();
+    for (Map.Entry<String, SingleTestFlakyStats> row : table.getRows()) {
+      SingleTestFlakyStats stats = row.getValue();
+      JSONObject test = new JSONObject();
+      test.put("name", row.getKey());
+      test.put("safeName", TestFlakyStatsOverRevision.getSafeTestName(row.getKey()));
+      test.put("pass", stats.getPass());
+      test.put("fail", stats.getFail());
+      test.put("flake", stats.getFlake());
+      tests.add(test);
+    }
+    JSONObject json = new JSONObject();
+    json.put("loading", currentlyLoading);
+    json.put("total", table.getTotal());
+    json.put("start", table.getStart());
+    json.put("tests", tests);
+
+    rsp.setContentType("application/json;charset=UTF-8");
+    json.write(rsp.getWriter());
+  }
+
+  private List<Map.Entry<String, SingleTestFlakyStats>> getSortedTests(
+      FlakyTestHistorySnapshot current, boolean showAllTests, SortKey key, boolean descending) {
+    Map<String, SingleTestFlakyStats> stats =
+        getFilteredAggregatedFlakyStats(current, showAllTests);
+    SortedTests sorted = showAllTests ? sortedAllTests : sortedFlakyTests;
+    // The maps of a snapshot are materialized once, so the same map means the same history
+    if (sorted == null || sorted.stats != stats || sorted.key != key
+        || sorted.descending != descending) {
+      sorted = new SortedTests(stats, key, descending,
+          FlakyTestHistoryTable.sort(stats, key, descending));
+      if (showAllTests) {
+        sortedAllTests = sorted;
+      } else {
+        sortedFlakyTests = sorted;
+      }
     }
-    return Maps.filterEntries(aggregatedFlakyStats, flakyTestsFilter);
+    return sorted.tests;
   }
 
   public String getIconFileName() {
@@ -235,6 +422,28 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
     return "historyAggregate";
   }
 
+  /**
+   * Tests sorted for the table, along with the map and the sort they were sorted from
+   */
+  private static final class SortedTests {
+
+    final Map<String, SingleTestFlakyStats> stats;
+
+    final SortKey key;
+
+    final boolean descending;
+
+    final List<Map.Entry<String, SingleTestFlakyStats>> tests;
+
+    SortedTests(Map<String, SingleTestFlakyStats> stats, SortKey key, boolean descending,
+        List<Map.Entry<String, SingleTestFlakyStats>> tests) {
+      this.stats = stats;
+      this.key = key;
+      this.descending = descending;
+      this.tests = tests;
+    }
+  }
+
   /**
    * Class for flaky information for one single test
    */
@@ -316,8 +525,8 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
     private SingleTestFlakyStats stats;
 
     /**
-     * The revision with this test stats. If using GIT for scm, then it will be the git Shal string;
-     * Otherwise it will be the build number.
+     * The revision with this test stats, as resolved by {@link RevisionResolver}. If using GIT for
+     * scm, then it will be the git Shal string; Otherwise it will be the build number.
      */
     private String revision;
 
@@ -329,26 +538,7 @@ public class HistoryAggregatedFlakyTestResultAction implements Action {
      * @param build The {@link hudson.model.Run} object to get SCM information from.
      */
     public SingleTestFlakyStatsWithRevision(SingleTestFlakyStats stats, Run build) {
-      this.stats = stats;
-      revision = Integer.toString(build.getNumber());
-
-      Job job = build.getParent();
-      SCMTriggerItem s = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
-      if (s != null) {
-        ArrayList<SCM> scms = new ArrayList<>(s.getSCMs());
-        SCM scm = scms.size() > 0 ? scms.get(0) : null;
-
-        if (scm != null && "hudson.plugins.git.GitSCM".equalsIgnoreCase(scm.getType())) {
-          GitSCM gitSCM = (GitSCM) scm;
-          BuildData buildData = gitSCM.getBuildData(build);
-          if (buildData != null) {
-            Revision gitRevision = buildData.getLastBuiltRevision();
-            if (gitRevision != null) {
-              revision = gitRevision.getSha1String();
-            }
-          }
-        }
-      }
+      this(stats, RevisionResolver.resolveRevision(build));
     }
 
     public SingleTestFlakyStatsWithRevision(SingleTestFlakyStats stats, String revision) {
@@ -17,6 +17,7 @@ package com.google.jenkins.flakyTestHandler.plugin;
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest2;
 
 import java.io.IOException;
@@ -44,11 +45,25 @@ import hudson.tasks.Recorder;
 public class JUnitFlakyResultArchiver extends Recorder implements
     Serializable {
 
+  /**
+   * Number of report files parsed at the same time on the agent
+   */
+  private int parsingParallelism = 1;
+
   @DataBoundConstructor
   public JUnitFlakyResultArchiver() {
 
   }
 
+  public int getParsingParallelism() {
+    return Math.max(1, parsingParallelism);
+  }
+
+  @DataBoundSetter
+  public void setParsingParallelism(int parsingParallelism) {
+    this.parsingParallelism = Math.max(1, parsingParallelism);
+  }
+
   @Override
   public BuildStepMonitor getRequiredMonitorService() {
     return BuildStepMonitor.NONE;
@@ -63,15 +78,13 @@ public class JUnitFlakyResultArchiver extends Recorder implements
   @Override
   public Collection<Action> getProjectActions(AbstractProject<?, ?> project) {
     Collection<Action> actions = new ArrayList<Action>();
-    if (!project.isBuilding()) {
-      HistoryAggregatedFlakyTestResultAction action = new HistoryAggregatedFlakyTestResultAction(
-          project);
-      action.aggregate();
-
-      TestFlakyStatsOverRevision testFlakyStatsOverRevision = new TestFlakyStatsOverRevision(project, action);
-      actions.add(testFlakyStatsOverRevision);
-      actions.add(action);
-    }
+    // Don't block the request on loading the history, the action shows it once it is loaded
+    HistoryAggregatedFlakyTestResultAction action = FlakyTestHistoryIndex.forProject(project)
+        .getHistoryAction();
+
+    TestFlakyStatsOverRevision testFlakyStatsOverRevision = new TestFlakyStatsOverRevision(project, action);
+    actions.add(testFlakyStatsOverRevision);
+    actions.add(action);
     return actions;
   }
 
@@ -86,9 +99,10 @@ public class JUnitFlakyResultArchiver extends Recorder implements
   @Override
   public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
       throws InterruptedException, IOException {
-    FlakyTestResultAction flakyStatCollectionAction = new FlakyTestResultAction(build, launcher, listener);
+    FlakyTestResultAction flakyStatCollectionAction = new FlakyTestResultAction(build, launcher, listener,
+        getParsingParallelism());
     build.addAction(flakyStatCollectionAction);
-    if (flakyStatCollectionAction.getFlakyRunStats().isFlaked()) {
+    if (flakyStatCollectionAction.isFlaked()) {
       build.setResult(Result.UNSTABLE);
     }
 
@@ -107,7 +121,7 @@ public class JUnitFlakyResultArchiver extends Recorder implements
     public Publisher
     newInstance(StaplerRequest2 req, JSONObject formData)
         throws hudson.model.Descriptor.FormException {
-      return new JUnitFlakyResultArchiver();
+      return req.bindJSON(JUnitFlakyResultArchiver.class, formData);
     }
 
     @Override
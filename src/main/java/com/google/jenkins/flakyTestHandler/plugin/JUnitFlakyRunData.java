@@ -0,0 +1,88 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+import com.google.jenkins.flakyTestHandler.junit.FlakyRunScanner;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import hudson.model.Run;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.ClassResult;
+import hudson.tasks.junit.TestAction;
+import hudson.tasks.junit.TestObject;
+import hudson.tasks.junit.TestResultAction;
+
+/**
+ * Data object to hold rerun information of the tests which have some only. Unlike
+ * {@link JUnitFlakyTestData}, the other tests aren't kept: their actions are worked out from the
+ * test results of the junit plugin when asked for.
+ */
+public class JUnitFlakyRunData extends TestResultAction.Data {
+
+  /**
+   * Reruns of the tests which have some, by {@link FlakyRunScanner#key}
+   */
+  private final Map<String, List<FlakyRunInformation>> flakyRuns;
+
+  public JUnitFlakyRunData(Map<String, List<FlakyRunInformation>> flakyRuns) {
+    this.flakyRuns = flakyRuns;
+  }
+
+  /**
+   * Get action to display rerun information for each test case and class
+   *
+   * @param testObject the test object to get information for
+   * @return action to display rerun information for the given test
+   */
+  @Override
+  public List<? extends TestAction> getTestAction(TestObject testObject) {
+    if (testObject instanceof CaseResult) {
+      CaseResult caseResult = (CaseResult) testObject;
+      Run<?, ?> run = caseResult.getRun();
+      return Collections.singletonList(new JUnitFlakyTestDataAction(getFlakyRuns(caseResult),
+          caseResult.isFailed(), run == null ? null : run.getRootDir()));
+    }
+    if (testObject instanceof ClassResult) {
+      int passed = 0;
+      int failed = 0;
+      int flaked = 0;
+      for (CaseResult caseResult : ((ClassResult) testObject).getChildren()) {
+        if (caseResult.isSkipped()) {
+          continue;
+        }
+        if (!caseResult.isPassed()) {
+          failed++;
+        } else if (getFlakyRuns(caseResult).isEmpty()) {
+          passed++;
+        } else {
+          flaked++;
+        }
+      }
+      return Collections.singletonList(
+          new JUnitFlakyAggregatedTestDataAction(passed, failed, flaked));
+    }
+    return Collections.emptyList();
+  }
+
+  private List<FlakyRunInformation> getFlakyRuns(CaseResult caseResult) {
+    List<FlakyRunInformation> runs =
+        flakyRuns.get(FlakyRunScanner.key(caseResult.getClassName(), caseResult.getName()));
+    return runs == null ? Collections.<FlakyRunInformation>emptyList() : runs;
+  }
+}
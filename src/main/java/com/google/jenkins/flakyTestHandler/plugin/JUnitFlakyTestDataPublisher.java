@@ -19,9 +19,13 @@ import com.google.jenkins.flakyTestHandler.junit.FlakyTestResult;
 import hudson.remoting.VirtualChannel;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.Objects;
+import java.util.Set;
 
 import hudson.Extension;
 import hudson.FilePath;
@@ -31,6 +35,7 @@ import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.tasks.junit.SuiteResult;
 import hudson.tasks.junit.TestDataPublisher;
 import hudson.tasks.junit.TestResult;
 import hudson.tasks.junit.TestResultAction;
@@ -44,10 +49,39 @@ import hudson.tasks.test.AbstractTestResultAction;
 public class JUnitFlakyTestDataPublisher
     extends TestDataPublisher {
 
+  /**
+   * Number of report files parsed at the same time on the agent
+   */
+  private int parsingParallelism = 1;
+
+  /**
+   * Whether to only collect the reruns from the reports, instead of parsing their whole results
+   * again
+   */
+  private boolean flakyRunsOnly;
+
   @DataBoundConstructor
   public JUnitFlakyTestDataPublisher() {
   }
 
+  public int getParsingParallelism() {
+    return Math.max(1, parsingParallelism);
+  }
+
+  @DataBoundSetter
+  public void setParsingParallelism(int parsingParallelism) {
+    this.parsingParallelism = Math.max(1, parsingParallelism);
+  }
+
+  public boolean isFlakyRunsOnly() {
+    return flakyRunsOnly;
+  }
+
+  @DataBoundSetter
+  public void setFlakyRunsOnly(boolean flakyRunsOnly) {
+    this.flakyRunsOnly = flakyRunsOnly;
+  }
+
   @Override
   public TestResultAction.Data contributeTestData(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener, TestResult testResult)
       throws IOException, InterruptedException {
@@ -55,7 +89,40 @@ public class JUnitFlakyTestDataPublisher
     if(channel == null) {
           throw new InterruptedException("Could not get channel to run a program remotely.");
     }
-    FlakyTestResult flakyTestResult = channel.call(new FlakyTestResultCollector(testResult));
+    FlakyStdioArchive stdio = FlakyStdioArchive.create(run, workspace);
+    try {
+      TestResultAction.Data data = collect(run, channel, testResult, stdio);
+      if (stdio != null) {
+        stdio.archive();
+        stdio = null;
+      }
+      return data;
+    } finally {
+      if (stdio != null) {
+        stdio.discard();
+      }
+    }
+  }
+
+  /**
+   * Collect the flaky test data of a build on the agent
+   *
+   * @param stdio the files to store the output of the tests in, or null to keep it in the data
+   */
+  private TestResultAction.Data collect(Run<?, ?> run, VirtualChannel channel,
+      TestResult testResult, FlakyStdioArchive stdio) throws IOException, InterruptedException {
+    String stdioFile = stdio == null ? null : stdio.getRemotePath();
+    String stdioName = stdio == null ? null : stdio.getName();
+    if (flakyRunsOnly) {
+      Set<String> reportFiles = new LinkedHashSet<String>();
+      for (SuiteResult suiteResult : testResult.getSuites()) {
+        reportFiles.add(suiteResult.getFile());
+      }
+      return new JUnitFlakyRunData(channel.call(
+          new FlakyRunsCollector(new ArrayList<String>(reportFiles), stdioFile, stdioName)));
+    }
+    FlakyTestResult flakyTestResult = channel.call(new FlakyTestResultCollector(testResult,
+        getParsingParallelism(), stdioFile, stdioName));
     // TODO consider the possibility that there is >1 such action
     flakyTestResult.freeze(run.getAction(AbstractTestResultAction.class), run);
     return new JUnitFlakyTestData(flakyTestResult);
@@ -0,0 +1,345 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.primitives.UnsignedBytes;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistorySnapshot.BuildStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Read-only view of the records of a memory-mapped {@link FlakyTestStatsSegment}. Records are
+ * read in place: looking up one test of a build is a binary search over the test table of its
+ * record, comparing the UTF-8 bytes of the names in the mapping, so no object is created per test
+ * of the build.
+ *
+ * <p>Layout of a record, with big-endian integers:
+ * <pre>
+ * int buildNumber
+ * byte flags                                 HAS_STATS, DEFLAKE
+ * long timestamp
+ * int revisionCount
+ * int testCount
+ * revisionCount * (offset, length)           revisions in the string area
+ * testCount * (offset, length, revision,     tests sorted by the UTF-8 bytes of their name
+ *              pass, fail, flake)
+ * string area                                UTF-8, offsets are relative to its start
+ * </pre>
+ */
+final class MappedFlakyTestStats {
+
+  private static final int HAS_STATS = 1;
+
+  private static final int DEFLAKE = 2;
+
+  private static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 4;
+
+  private static final int REVISION_ENTRY_SIZE = 2 * 4;
+
+  private static final int TEST_ENTRY_SIZE = 6 * 4;
+
+  private final ByteBuffer buffer;
+
+  /**
+   * Offset and length of the record of each build in the buffer
+   */
+  private final SortedMap<Integer, long[]> entries;
+
+  MappedFlakyTestStats(ByteBuffer buffer, SortedMap<Integer, long[]> entries) {
+    this.buffer = buffer;
+    this.entries = entries;
+  }
+
+  /**
+   * Get the numbers of the builds with a record, including the builds without stats
+   */
+  SortedSet<Integer> getBuildNumbers() {
+    return Collections.unmodifiableSortedSet(new TreeSet<Integer>(entries.keySet()));
+  }
+
+  boolean contains(int buildNumber) {
+    return entries.containsKey(buildNumber);
+  }
+
+  /**
+   * Look up the stats of one test in one build
+   *
+   * @param buildNumber number of the build
+   * @param testName name of the test
+   * @return the stats of the test, or null if the build has no record, no stats, or didn't run
+   *     the test
+   * @throws IOException if the record is corrupt
+   */
+  SingleTestFlakyStatsWithRevision getTestStats(int buildNumber, String testName)
+      throws IOException {
+    Record record = getRecord(buildNumber);
+    if (record == null || !record.hasStats()) {
+      return null;
+    }
+    int test = record.find(testName.getBytes(StandardCharsets.UTF_8));
+    return test < 0 ? null : record.getTestStats(test);
+  }
+
+  /**
+   * Get the names of all the tests of one build
+   *
+   * @param buildNumber number of the build
+   * @return the names of the tests, or null if the build has no record or no stats
+   * @throws IOException if the record is corrupt
+   */
+  List<String> getTestNames(int buildNumber) throws IOException {
+    Record record = getRecord(buildNumber);
+    if (record == null || !record.hasStats()) {
+      return null;
+    }
+    List<String> testNames = new ArrayList<String>(record.testCount);
+    for (int test = 0; test < record.testCount; test++) {
+      testNames.add(record.getTestName(test));
+    }
+    return testNames;
+  }
+
+  /**
+   * Get the stats of all the tests of one build
+   *
+   * @param buildNumber number of the build
+   * @return the stats of the build, or null if the build has no record or no stats
+   * @throws IOException if the record is corrupt
+   */
+  BuildStats getBuildStats(int buildNumber) throws IOException {
+    Record record = getRecord(buildNumber);
+    if (record == null || !record.hasStats()) {
+      return null;
+    }
+    Map<String, SingleTestFlakyStatsWithRevision> tests =
+        new HashMap<String, SingleTestFlakyStatsWithRevision>(record.testCount * 4 / 3 + 1);
+    for (int test = 0; test < record.testCount; test++) {
+      tests.put(record.getTestName(test), record.getTestStats(test));
+    }
+    return new BuildStats(buildNumber, record.isDeflake(), record.getTimestamp(), tests);
+  }
+
+  private Record getRecord(int buildNumber) throws IOException {
+    long[] entry = entries.get(buildNumber);
+    if (entry == null) {
+      return null;
+    }
+    if (entry[0] < 0 || entry[1] < HEADER_SIZE || entry[0] + entry[1] > buffer.limit()) {
+      throw new IOException("Record of build #" + buildNumber + " is out of the segment");
+    }
+    Record record = new Record((int) entry[0], (int) entry[1]);
+    if (record.getBuildNumber() != buildNumber) {
+      throw new IOException(
+          "Expected build #" + buildNumber + " but found #" + record.getBuildNumber());
+    }
+    return record;
+  }
+
+  /**
+   * Serialize the stats of a build to a record
+   *
+   * @param buildNumber number of the build
+   * @param buildStats the stats of the build, or null if it has none
+   * @return the record
+   */
+  static byte[] toRecord(int buildNumber, BuildStats buildStats) throws IOException {
+    Map<String, SingleTestFlakyStatsWithRevision> tests = buildStats == null
+        ? Collections.<String, SingleTestFlakyStatsWithRevision>emptyMap()
+        : buildStats.getTestFlakyStatsMap();
+    // Tests are sorted by the bytes of their name, the order they are searched in
+    SortedMap<byte[], SingleTestFlakyStatsWithRevision> sortedTests =
+        new TreeMap<byte[], SingleTestFlakyStatsWithRevision>(
+            UnsignedBytes.lexicographicalComparator());
+    Map<String, Integer> revisions = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : tests.entrySet()) {
+      sortedTests.put(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue());
+      if (!revisions.containsKey(entry.getValue().getRevision())) {
+        revisions.put(entry.getValue().getRevision(), revisions.size());
+      }
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream strings = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    int flags = 0;
+    if (buildStats != null) {
+      flags |= HAS_STATS;
+      if (buildStats.isDeflake()) {
+        flags |= DEFLAKE;
+      }
+    }
+    out.writeInt(buildNumber);
+    out.writeByte(flags);
+    out.writeLong(buildStats == null ? 0 : buildStats.getTimestamp());
+    out.writeInt(revisions.size());
+    out.writeInt(sortedTests.size());
+    for (String revision : revisions.keySet()) {
+      writeString(out, strings, revision.getBytes(StandardCharsets.UTF_8));
+    }
+    for (Map.Entry<byte[], SingleTestFlakyStatsWithRevision> entry : sortedTests.entrySet()) {
+      SingleTestFlakyStats testStats = entry.getValue().getStats();
+      writeString(out, strings, entry.getKey());
+      out.writeInt(revisions.get(entry.getValue().getRevision()));
+      out.writeInt(testStats.getPass());
+      out.writeInt(testStats.getFail());
+      out.writeInt(testStats.getFlake());
+    }
+    strings.writeTo(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, ByteArrayOutputStream strings,
+      byte[] value) throws IOException {
+    out.writeInt(strings.size());
+    out.writeInt(value.length);
+    strings.write(value);
+  }
+
+  /**
+   * Accessor of one record in the buffer, checking its tables stay within the record
+   */
+  private final class Record {
+
+    private final int start;
+
+    private final int revisionCount;
+
+    private final int testCount;
+
+    private final int tests;
+
+    private final int strings;
+
+    private final int stringsLength;
+
+    Record(int start, int length) throws IOException {
+      this.start = start;
+      this.revisionCount = buffer.getInt(start + 13);
+      this.testCount = buffer.getInt(start + 17);
+      long tables = HEADER_SIZE + (long) revisionCount * REVISION_ENTRY_SIZE
+          + (long) testCount * TEST_ENTRY_SIZE;
+      if (revisionCount < 0 || testCount < 0 || tables > length) {
+        throw new IOException("Corrupt record at offset " + start);
+      }
+      this.tests = start + HEADER_SIZE + revisionCount * REVISION_ENTRY_SIZE;
+      this.strings = start + (int) tables;
+      this.stringsLength = length - (int) tables;
+    }
+
+    int getBuildNumber() {
+      return buffer.getInt(start);
+    }
+
+    boolean hasStats() {
+      return (buffer.get(start + 4) & HAS_STATS) != 0;
+    }
+
+    boolean isDeflake() {
+      return (buffer.get(start + 4) & DEFLAKE) != 0;
+    }
+
+    long getTimestamp() {
+      return buffer.getLong(start + 5);
+    }
+
+    /**
+     * Binary search a test by name
+     *
+     * @return the index of the test, or -1 if the build didn't run it
+     */
+    int find(byte[] testName) throws IOException {
+      int low = 0;
+      int high = testCount - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compare(tests + mid * TEST_ENTRY_SIZE, testName);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    String getTestName(int test) throws IOException {
+      return getString(tests + test * TEST_ENTRY_SIZE);
+    }
+
+    SingleTestFlakyStatsWithRevision getTestStats(int test) throws IOException {
+      int entry = tests + test * TEST_ENTRY_SIZE;
+      int revision = buffer.getInt(entry + 8);
+      if (revision < 0 || revision >= revisionCount) {
+        throw new IOException("Unknown revision " + revision + " at offset " + entry);
+      }
+      SingleTestFlakyStats testStats = new SingleTestFlakyStats(buffer.getInt(entry + 12),
+          buffer.getInt(entry + 16), buffer.getInt(entry + 20));
+      return new SingleTestFlakyStatsWithRevision(testStats,
+          getString(start + HEADER_SIZE + revision * REVISION_ENTRY_SIZE));
+    }
+
+    /**
+     * Compare the string an entry points to with the given bytes, as unsigned bytes
+     */
+    private int compare(int entry, byte[] value) throws IOException {
+      int position = getStringPosition(entry);
+      int length = buffer.getInt(entry + 4);
+      int common = Math.min(length, value.length);
+      for (int i = 0; i < common; i++) {
+        int cmp = (buffer.get(position + i) & 0xFF) - (value[i] & 0xFF);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return length - value.length;
+    }
+
+    private String getString(int entry) throws IOException {
+      byte[] value = new byte[buffer.getInt(entry + 4)];
+      ByteBuffer string = buffer.duplicate();
+      string.position(getStringPosition(entry));
+      string.get(value);
+      return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private int getStringPosition(int entry) throws IOException {
+      int offset = buffer.getInt(entry);
+      int length = buffer.getInt(entry + 4);
+      if (offset < 0 || length < 0 || (long) offset + length > stringsLength) {
+        throw new IOException("String out of the record at offset " + entry);
+      }
+      return strings + offset;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Run;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.BuildData;
+import hudson.scm.SCM;
+import jenkins.triggers.SCMTriggerItem;
+
+/**
+ * Resolves the revision the tests of a build ran at, which the flaky stats of the tests are
+ * grouped by. Resolvers are asked in order of their ordinal, and the first revision found is used.
+ * If none is found, the build number is used as the revision.
+ */
+public abstract class RevisionResolver implements ExtensionPoint {
+
+  /**
+   * Revisions already resolved, so the revision of a build is only resolved once for all its tests.
+   * The build number fallback isn't cached, since a resolver may tell the revision later on, e.g.
+   * once the SCM data is attached to the build.
+   */
+  private static final Cache<Run<?, ?>, String> REVISIONS =
+      CacheBuilder.newBuilder().weakKeys().maximumSize(1000).build();
+
+  /**
+   * Get the revision of a build
+   *
+   * @param build the build
+   * @return the revision, or null if this resolver can't tell it
+   */
+  public abstract String resolve(Run<?, ?> build);
+
+  public static ExtensionList<RevisionResolver> all() {
+    return ExtensionList.lookup(RevisionResolver.class);
+  }
+
+  /**
+   * Get the revision of a build from the first resolver which can tell it
+   *
+   * @param build the build
+   * @return the revision, or the build number if no resolver can tell it
+   */
+  public static String resolveRevision(Run<?, ?> build) {
+    String revision = REVISIONS.getIfPresent(build);
+    if (revision != null) {
+      return revision;
+    }
+    for (RevisionResolver resolver : all()) {
+      revision = resolver.resolve(build);
+      if (revision != null) {
+        REVISIONS.put(build, revision);
+        return revision;
+      }
+    }
+    return Integer.toString(build.getNumber());
+  }
+
+  /**
+   * Uses the last built revision of each git repository checked out by the build. Builds checking
+   * out several repositories get a composite revision joining the revision of each of them.
+   */
+  @Extension(ordinal = -100)
+  public static class GitRevisionResolver extends RevisionResolver {
+
+    @Override
+    public String resolve(Run<?, ?> build) {
+      List<BuildData> buildDataList = new ArrayList<BuildData>();
+      SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(build.getParent());
+      if (item != null) {
+        for (SCM scm : item.getSCMs()) {
+          if (scm instanceof GitSCM) {
+            BuildData buildData = ((GitSCM) scm).getBuildData(build);
+            if (buildData != null) {
+              buildDataList.add(buildData);
+            }
+          }
+        }
+      }
+      if (buildDataList.isEmpty()) {
+        // e.g. multibranch jobs, whose SCM is only known by the build
+        buildDataList.addAll(build.getActions(BuildData.class));
+      }
+
+      Set<String> revisions = new LinkedHashSet<String>();
+      for (BuildData buildData : buildDataList) {
+        Revision revision = buildData.getLastBuiltRevision();
+        if (revision != null) {
+          revisions.add(revision.getSha1String());
+        }
+      }
+      return revisions.isEmpty() ? null : Joiner.on('+').join(revisions);
+    }
+  }
+}
@@ -14,7 +14,8 @@
  */
 package com.google.jenkins.flakyTestHandler.plugin.deflake;
 
-import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistoryIndex;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -26,6 +27,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import hudson.Extension;
+import hudson.model.AbstractBuild;
 import hudson.model.Action;
 import hudson.model.Cause;
 import hudson.model.Run;
@@ -54,12 +56,9 @@ public class DeflakeListener extends RunListener<Run> {
     // TODO consider the possibility that there is >1 such action
     TestResultAction testResultAction = run.getAction(TestResultAction.class);
 
-    HistoryAggregatedFlakyTestResultAction historyAction = run.getParent()
-        .getAction(HistoryAggregatedFlakyTestResultAction.class);
-
-    // Aggregate test running results
-    if (historyAction != null) {
-      historyAction.aggregateOneBuild(run);
+    // Aggregate test running results into the flaky history of the project
+    if (run instanceof AbstractBuild && run.getAction(FlakyTestResultAction.class) != null) {
+      FlakyTestHistoryIndex.forProject(((AbstractBuild<?, ?>) run).getProject()).recordBuild(run);
     }
 
     if (testResultAction != null && testResultAction.getFailCount() > 0) {
@@ -69,6 +68,14 @@ public class DeflakeListener extends RunListener<Run> {
     }
   }
 
+  // Subtract test running stats of a deleted build from the flaky history of the project
+  @Override
+  public void onDeleted(Run run) {
+    if (run instanceof AbstractBuild && run.getAction(FlakyTestResultAction.class) != null) {
+      FlakyTestHistoryIndex.forProject(((AbstractBuild<?, ?>) run).getProject()).removeBuild(run);
+    }
+  }
+
   // Set the name of a deflake build
   @Override
   public void onStarted(Run build, TaskListener listener) {
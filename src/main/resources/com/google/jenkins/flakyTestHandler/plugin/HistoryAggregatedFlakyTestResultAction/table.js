@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Fetches the visible page of the Flaky History table from the server
+Behaviour.specify(".flaky-history", "flaky-history", 0, function (container) {
+  var PAGE_SIZE = 50;
+  var state = {sort: "name", descending: false, filter: "", start: 0, total: 0};
+  var body = container.querySelector("tbody");
+  var position = container.querySelector(".flaky-history-position");
+  var previous = container.querySelector(".flaky-history-previous");
+  var next = container.querySelector(".flaky-history-next");
+  var error = container.querySelector(".flaky-history-error");
+  var errorMessage = error.textContent;
+  var filterTimer = null;
+
+  function cell(content) {
+    var td = document.createElement("td");
+    td.className = "pane";
+    td.style.textAlign = "left";
+    if (typeof content === "string") {
+      td.textContent = content;
+    } else {
+      td.appendChild(content);
+    }
+    return td;
+  }
+
+  function render(data) {
+    error.hidden = true;
+    state.start = data.start;
+    state.total = data.total;
+    body.textContent = "";
+    data.tests.forEach(function (test) {
+      var link = document.createElement("a");
+      link.href = "flakyStatsRevision?test=" + encodeURIComponent(test.safeName);
+      link.textContent = test.name;
+      var runs = test.pass + test.fail + test.flake;
+      var row = document.createElement("tr");
+      row.appendChild(cell(link));
+      row.appendChild(cell(String(test.pass)));
+      row.appendChild(cell(String(test.fail)));
+      row.appendChild(cell(String(test.flake)));
+      row.appendChild(cell(runs === 0 ? "0%" : Math.round(100 * test.flake / runs) + "%"));
+      body.appendChild(row);
+    });
+    var end = data.start + data.tests.length;
+    position.textContent = data.total === 0 ? "0" : (data.start + 1) + "-" + end + " / " + data.total;
+    previous.disabled = data.start === 0;
+    next.disabled = end >= data.total;
+  }
+
+  function load() {
+    var params = new URLSearchParams({
+      showAllTests: container.dataset.showAllTests,
+      sort: state.sort,
+      descending: state.descending,
+      filter: state.filter,
+      start: state.start,
+      size: PAGE_SIZE
+    });
+    fetch(container.dataset.url + "?" + params.toString())
+        .then(function (response) {
+          if (!response.ok) {
+            throw new Error(response.status + " " + response.statusText);
+          }
+          return response.json();
+        })
+        .then(render)
+        .catch(showError);
+  }
+
+  function showError(reason) {
+    body.textContent = "";
+    error.textContent = errorMessage + ": " + reason.message;
+    error.hidden = false;
+  }
+
+  container.querySelectorAll("a[data-sort]").forEach(function (header) {
+    header.addEventListener("click", function (event) {
+      event.preventDefault();
+      var sort = header.dataset.sort;
+      // Numbers are first sorted from the highest value, names from A to Z
+      state.descending = state.sort === sort ? !state.descending : sort !== "name";
+      state.sort = sort;
+      state.start = 0;
+      load();
+    });
+  });
+  container.querySelector(".flaky-history-filter").addEventListener("input", function (event) {
+    clearTimeout(filterTimer);
+    filterTimer = setTimeout(function () {
+      state.filter = event.target.value;
+      state.start = 0;
+      load();
+    }, 250);
+  });
+  previous.addEventListener("click", function () {
+    state.start = Math.max(0, state.start - PAGE_SIZE);
+    load();
+  });
+  next.addEventListener("click", function () {
+    state.start += PAGE_SIZE;
+    load();
+  });
+
+  load();
+});
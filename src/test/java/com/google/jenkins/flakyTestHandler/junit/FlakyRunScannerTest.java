@@ -0,0 +1,70 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlakyRunScannerTest {
+
+    private File getDataFile(String name) throws Exception {
+        return new File(FlakyRunScannerTest.class.getResource(name).toURI());
+    }
+
+    @Test
+    void testScanFindsSameRunsAsParse() throws Exception {
+        File report = getDataFile("flaky-reports/flaky-report-1.xml");
+        Map<String, List<FlakyRunInformation>> scanned = FlakyRunScanner.scan(report);
+
+        int casesWithRuns = 0;
+        for (FlakySuiteResult suite : FlakySuiteResult.parse(report, true)) {
+            for (FlakyCaseResult caseResult : suite.getCases()) {
+                List<FlakyRunInformation> runs = scanned.get(
+                        FlakyRunScanner.key(caseResult.getClassName(), caseResult.getName()));
+                if (caseResult.getFlakyRuns().isEmpty()) {
+                    assertEquals(null, runs, "no runs expected for " + caseResult.getName());
+                    continue;
+                }
+                casesWithRuns++;
+                assertNotNull(runs, "runs missing for " + caseResult.getName());
+                assertEquals(caseResult.getFlakyRuns().size(), runs.size(), "wrong number of runs");
+                for (int i = 0; i < runs.size(); i++) {
+                    FlakyRunInformation expected = caseResult.getFlakyRuns().get(i);
+                    assertEquals(expected.getFlakyErrorDetails(), runs.get(i).getFlakyErrorDetails());
+                    assertEquals(expected.getFlakyErrorStackTrace(),
+                            runs.get(i).getFlakyErrorStackTrace());
+                    assertEquals(expected.getFlakyStdOut(), runs.get(i).getFlakyStdOut());
+                    assertEquals(expected.getFlakyStdErr(), runs.get(i).getFlakyStdErr());
+                }
+            }
+        }
+        assertEquals(2, casesWithRuns, "wrong number of tests with reruns");
+        assertEquals(casesWithRuns, scanned.size(), "only tests with reruns should be kept");
+    }
+
+    @Test
+    void testReportWithoutRerunsIsEmpty() throws Exception {
+        assertTrue(FlakyRunScanner.scan(getDataFile("junit-report-1233.xml")).isEmpty(),
+                "no reruns expected");
+    }
+}
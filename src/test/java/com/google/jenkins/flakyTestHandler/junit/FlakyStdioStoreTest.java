@@ -0,0 +1,60 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.junit;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FlakyStdioStoreTest {
+
+    @TempDir
+    File buildDir;
+
+    @Test
+    void testStoredTextsAreReadBack() throws Exception {
+        FlakyStdioStore store = new FlakyStdioStore(new File(buildDir, "stdio.bin"), "stdio.bin");
+        FlakyStdioStore.Ref first = store.store("first output");
+        FlakyStdioStore.Ref empty = store.store("");
+        FlakyStdioStore.Ref second = store.store("second\noutput");
+        store.close();
+
+        assertNull(store.store(null), "null text should have no reference");
+        assertEquals("second\noutput", FlakyStdioStore.read(buildDir, second));
+        assertEquals("first output", FlakyStdioStore.read(buildDir, first));
+        assertEquals("", FlakyStdioStore.read(buildDir, empty));
+        assertNull(FlakyStdioStore.read(null, first), "unknown build directory");
+    }
+
+    @Test
+    void testFlakyRunStdioIsMovedToStore() throws Exception {
+        FlakyRunInformation run = new FlakyRunInformation("details", "trace", "out", "err");
+        FlakyStdioStore store = new FlakyStdioStore(new File(buildDir, "stdio.bin"), "stdio.bin");
+        run.storeStdio(store);
+        store.close();
+
+        assertNull(run.getFlakyStdOut(), "stored stdout needs the build directory");
+        assertEquals("details", run.getFlakyErrorDetails());
+        assertEquals("trace", run.getFlakyErrorStackTrace());
+        run.setBuildDir(buildDir);
+        assertEquals("out", run.getFlakyStdOut());
+        assertEquals("err", run.getFlakyStdErr());
+    }
+}
@@ -17,6 +17,7 @@ package com.google.jenkins.flakyTestHandler.junit;
 import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.XmlFile;
+import org.dom4j.DocumentException;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.Issue;
 
@@ -31,6 +32,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -343,4 +345,43 @@ class FlakySuiteResultTest {
         assertEquals("test.foo.bar.ProjectSettingsTest",
                 cases.get(4).getClassName(), "Class name is incorrect");
     }
+
+    @Test
+    void testDoctypeIsRejected() throws Exception {
+        File data = File.createTempFile("testDoctypeIsRejected", ".xml");
+        try {
+            try (Writer w = new FileWriter(data)) {
+                PrintWriter pw = new PrintWriter(w);
+                pw.println("<!DOCTYPE testsuite [<!ENTITY xxe SYSTEM 'file:///etc/passwd'>]>");
+                pw.println("<testsuite name='x'><testcase name='x' classname='x'>");
+                pw.println("<system-out>&xxe;</system-out>");
+                pw.println("</testcase></testsuite>");
+                pw.flush();
+            }
+            assertThrows(DocumentException.class, () -> FlakySuiteResult.parse(data, false));
+        } finally {
+            data.delete();
+        }
+    }
+
+    @Test
+    void testFlakyStackTraceExcludesChildText() throws Exception {
+        File data = File.createTempFile("testFlakyStackTraceExcludesChildText", ".xml");
+        try {
+            try (Writer w = new FileWriter(data)) {
+                PrintWriter pw = new PrintWriter(w);
+                pw.println("<testsuite name='x'><properties><property name='a' value='b'/></properties>");
+                pw.print("<testcase name='x' classname='x'><flakyFailure message='m'>trace");
+                pw.print("<system-out>out</system-out><![CDATA[ more]]><other>ignored</other>");
+                pw.println("</flakyFailure></testcase></testsuite>");
+                pw.flush();
+            }
+            FlakyRunInformation run = parseOne(data).getCases().get(0).getFlakyRuns().get(0);
+            assertEquals("m", run.getFlakyErrorDetails());
+            assertEquals("trace more", run.getFlakyErrorStackTrace());
+            assertEquals("out", run.getFlakyStdOut());
+        } finally {
+            data.delete();
+        }
+    }
 }
@@ -24,6 +24,7 @@ import org.jvnet.hudson.test.Issue;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -160,6 +161,64 @@ class FlakyTestResultTest {
         assertEquals(1, testResult.getFlakyTests().size(), "Wrong number of flaky test cases");
     }
 
+    @Test
+    void testParallelParsingMergesInFileOrder() throws IOException, URISyntaxException {
+        File baseDir = getDataFile("JENKINS-12457/TestSuite_a1.xml").getParentFile().getParentFile();
+        String[] reportFiles = {
+                "JENKINS-12457/TestSuite_a1.xml",
+                "JENKINS-12457/TestSuite_b.xml",
+                "JENKINS-13214/27449.xml",
+                "JENKINS-12457/TestSuite_a2.xml",
+                "JENKINS-12457/TestSuite_b_duplicate.xml",
+                "flaky-reports/flaky-report-1.xml",
+                "JENKINS-13214/27540.xml",
+        };
+        FlakyTestResult sequential = new FlakyTestResult();
+        sequential.parse(0, baseDir, reportFiles);
+        sequential.tally();
+        FlakyTestResult parallel = new FlakyTestResult();
+        parallel.setParsingParallelism(3);
+        parallel.parse(0, baseDir, reportFiles);
+        parallel.tally();
+
+        assertEquals(describe(sequential), describe(parallel), "Suites merged differently");
+        assertEquals(sequential.getTotalCount(), parallel.getTotalCount(), "Wrong number of test cases");
+        assertEquals(sequential.getDuration(), parallel.getDuration(), "Wrong duration for test result");
+    }
+
+    /**
+     * Sized so merging suites by scanning all the suites added before, as it used to, takes a very
+     * long time.
+     */
+    @Test
+    void testManySuitesSplitOverFilesAreMerged() {
+        int suiteCount = 50000;
+        FlakyTestResult testResult = new FlakyTestResult();
+        for (int part = 0; part < 2; part++) {
+            for (int i = 0; i < suiteCount; i++) {
+                FlakySuiteResult suite = new FlakySuiteResult("Suite" + i, "", "");
+                suite.addCase(new FlakyCaseResult(suite, "test" + part, null));
+                testResult.add(suite);
+            }
+        }
+
+        assertEquals(suiteCount, testResult.getSuites().size(), "Wrong number of testsuites");
+        for (FlakySuiteResult suite : testResult.getSuites()) {
+            assertEquals(2, suite.getCases().size(), "Suite not merged: " + suite.getName());
+        }
+    }
+
+    private static List<String> describe(FlakyTestResult testResult) {
+        List<String> description = new ArrayList<>();
+        for (FlakySuiteResult suite : testResult.getSuites()) {
+            description.add(suite.getName());
+            for (FlakyCaseResult caseResult : suite.getCases()) {
+                description.add("  " + caseResult.getFullName());
+            }
+        }
+        return description;
+    }
+
     private static final XStream XSTREAM = new XStream2();
 
     static {
@@ -0,0 +1,67 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.junit.FlakyCaseResult.FlakyRunInformation;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlakyDataCompressionTest {
+
+    private static final String STACK_TRACE = "java.lang.AssertionError: expected:<1> but was:<2>\n"
+            + "\tat org.junit.Assert.fail(Assert.java:88)\n"
+            + "\tat org.junit.Assert.assertEquals(Assert.java:645)\n"
+            + "\tat com.google.example.FooTest.testOne(FooTest.java:42)\n";
+
+    @Test
+    void testStringsAreDecompressedByIndex() throws IOException {
+        StringBuilder stdOut = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            stdOut.append("Running iteration ").append(i).append('\n');
+        }
+        byte[] payload = FlakyDataCompression.compressStrings("message", STACK_TRACE,
+                stdOut.toString(), null);
+
+        assertTrue(payload.length < stdOut.length() / 4, "payload should be compressed");
+        assertEquals("message", FlakyDataCompression.decompressString(payload, 0), "wrong string");
+        assertEquals(STACK_TRACE, FlakyDataCompression.decompressString(payload, 1), "wrong string");
+        assertEquals(stdOut.toString(), FlakyDataCompression.decompressString(payload, 2),
+                "wrong string");
+        assertNull(FlakyDataCompression.decompressString(payload, 3), "string should be null");
+    }
+
+    @Test
+    void testCorruptPayloadIsRejected() {
+        byte[] payload = "not compressed".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> FlakyDataCompression.decompressString(payload, 0));
+    }
+
+    @Test
+    void testFlakyRunInformationIsDecompressedOnRead() {
+        FlakyRunInformation run = new FlakyRunInformation("message", STACK_TRACE, null, "stderr");
+
+        assertEquals("message", run.getFlakyErrorDetails(), "wrong error details");
+        assertEquals(STACK_TRACE, run.getFlakyErrorStackTrace(), "wrong stack trace");
+        assertNull(run.getFlakyStdOut(), "stdout should be null");
+        assertEquals("stderr", run.getFlakyStdErr(), "wrong stderr");
+    }
+}
@@ -0,0 +1,74 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.cache.CacheStats;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class FlakyRunStatsCacheTest {
+
+    @AfterEach
+    void resetSize() {
+        FlakyRunStatsCache.setMaximumSize(FlakyRunStatsCache.DEFAULT_SIZE_MB);
+    }
+
+    @Test
+    void testHitsAndMissesAreCounted() {
+        FlakyTestResultAction action = new FlakyTestResultAction();
+        FlakyRunStats stats = createStats(10);
+        CacheStats before = FlakyRunStatsCache.stats();
+
+        assertNull(FlakyRunStatsCache.get(action), "stats should not be cached yet");
+        FlakyRunStatsCache.put(action, stats);
+        assertSame(stats, FlakyRunStatsCache.get(action), "stats should be cached");
+
+        CacheStats counts = FlakyRunStatsCache.stats().minus(before);
+        assertEquals(1, counts.hitCount(), "wrong number of hits");
+        assertEquals(1, counts.missCount(), "wrong number of misses");
+    }
+
+    @Test
+    void testStatsLargerThanCacheAreEvicted() {
+        FlakyRunStatsCache.setMaximumSize(1);
+        FlakyTestResultAction action = new FlakyTestResultAction();
+        FlakyRunStats stats = createStats(10000);
+        CacheStats before = FlakyRunStatsCache.stats();
+
+        FlakyRunStatsCache.put(action, stats);
+        assertNull(FlakyRunStatsCache.get(action), "stats should be evicted");
+        assertEquals(1, FlakyRunStatsCache.stats().minus(before).evictionCount(),
+                "wrong number of evictions");
+    }
+
+    private static FlakyRunStats createStats(int testCount) {
+        Map<String, SingleTestFlakyStatsWithRevision> tests = new HashMap<>();
+        for (int i = 0; i < testCount; i++) {
+            tests.put("com.example.SomeRatherLongTestClassName.testMethod" + i,
+                    new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, 0, 0), "rev"));
+        }
+        return new FlakyRunStats(tests);
+    }
+}
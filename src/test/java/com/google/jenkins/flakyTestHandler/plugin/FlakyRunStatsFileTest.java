@@ -0,0 +1,70 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FlakyRunStatsFileTest {
+
+    @TempDir
+    File tmp;
+
+    @Test
+    void testStatsAreWrittenAndRead() throws Exception {
+        Map<String, SingleTestFlakyStatsWithRevision> tests = new HashMap<>();
+        tests.put("com.example.FooTest.testOne",
+                new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, 0, 0), "rev1"));
+        tests.put("com.example.FooTest.testTwo",
+                new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(0, 300, 0), "rev1"));
+        tests.put("testWithoutClass",
+                new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(1, 2, 70000), "rev2"));
+
+        File file = new File(tmp, FlakyRunStatsFile.FILE_NAME);
+        FlakyRunStatsFile.write(file, new FlakyRunStats(tests));
+        Map<String, SingleTestFlakyStatsWithRevision> read =
+                FlakyRunStatsFile.read(file).getTestFlakyStatsWithRevisionMap();
+
+        assertEquals(tests.keySet(), read.keySet(), "wrong tests");
+        for (Map.Entry<String, SingleTestFlakyStatsWithRevision> entry : tests.entrySet()) {
+            SingleTestFlakyStatsWithRevision expected = entry.getValue();
+            SingleTestFlakyStatsWithRevision actual = read.get(entry.getKey());
+            assertEquals(expected.getRevision(), actual.getRevision(), "wrong revision");
+            assertEquals(expected.getStats().getPass(), actual.getStats().getPass(), "wrong passes");
+            assertEquals(expected.getStats().getFail(), actual.getStats().getFail(), "wrong fails");
+            assertEquals(expected.getStats().getFlake(), actual.getStats().getFlake(), "wrong flakes");
+        }
+    }
+
+    @Test
+    void testOtherFormatIsRejected() throws Exception {
+        File file = new File(tmp, FlakyRunStatsFile.FILE_NAME);
+        Files.write(file.toPath(), "<xml/>".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> FlakyRunStatsFile.read(file));
+    }
+}
@@ -0,0 +1,60 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunSummary;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlakyRunSummaryTest {
+
+    @Test
+    void testCountsAndTestHashes() {
+        Map<String, SingleTestFlakyStatsWithRevision> tests = new HashMap<>();
+        tests.put("testPassed", createStats(1, 0, 0));
+        tests.put("testAlsoPassed", createStats(1, 0, 0));
+        tests.put("testFlaked", createStats(1, 0, 1));
+        FlakyRunStats stats = new FlakyRunStats(tests);
+        FlakyRunSummary summary = new FlakyRunSummary(stats);
+
+        assertEquals(2, summary.getPassCount(), "wrong number of passed tests");
+        assertEquals(1, summary.getFlakeCount(), "wrong number of flaked tests");
+        assertEquals(0, summary.getFailCount(), "wrong number of failed tests");
+        assertTrue(summary.isFlaked(), "run should be flaked");
+        assertEquals(stats.isFlaked(), summary.isFlaked(), "summary should agree with stats");
+        assertTrue(summary.mayHaveFlaked("testFlaked"), "test should have flaked");
+        assertFalse(summary.mayHaveFailed("testFlaked"), "test shouldn't have failed");
+
+        tests.put("testFailed", createStats(0, 1, 0));
+        summary = new FlakyRunSummary(stats);
+        assertFalse(summary.isFlaked(), "run with a failure isn't flaked");
+        assertEquals(stats.isFlaked(), summary.isFlaked(), "summary should agree with stats");
+        assertTrue(summary.mayHaveFailed("testFailed"), "test should have failed");
+    }
+
+    private static SingleTestFlakyStatsWithRevision createStats(int pass, int fail, int flake) {
+        return new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(pass, fail, flake),
+                "rev");
+    }
+}
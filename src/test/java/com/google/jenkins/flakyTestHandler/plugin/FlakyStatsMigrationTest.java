@@ -0,0 +1,64 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+import hudson.XmlFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlakyStatsMigrationTest {
+
+    private final RateLimiter limiter = RateLimiter.create(1024 * 1024);
+
+    @TempDir
+    File buildDir;
+
+    @Test
+    void testLegacyFileIsConverted() throws Exception {
+        Map<String, SingleTestFlakyStatsWithRevision> tests = new HashMap<>();
+        tests.put("com.example.FooTest.testOne",
+                new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(0, 1, 2), "rev1"));
+        File legacyFile = new File(buildDir, FlakyTestResultAction.LEGACY_FILE_NAME);
+        new XmlFile(FlakyTestResultAction.XSTREAM, legacyFile).write(new FlakyRunStats(tests));
+
+        assertEquals(legacyFile.length(), FlakyStatsMigration.convert(buildDir, limiter),
+                "wrong converted size");
+        assertTrue(legacyFile.exists(), "legacy file should be kept");
+        File statsFile = new File(buildDir, FlakyRunStatsFile.FILE_NAME);
+        assertTrue(statsFile.exists(), "stats file should be written");
+        SingleTestFlakyStatsWithRevision stats = FlakyRunStatsFile.read(statsFile)
+                .getTestFlakyStatsWithRevisionMap().get("com.example.FooTest.testOne");
+        assertEquals("rev1", stats.getRevision(), "wrong revision");
+        assertEquals(2, stats.getStats().getFlake(), "wrong number of flakes");
+
+        assertEquals(-1, FlakyStatsMigration.convert(buildDir, limiter), "already converted");
+    }
+
+    @Test
+    void testBuildWithoutLegacyFileIsSkipped() throws Exception {
+        assertEquals(-1, FlakyStatsMigration.convert(buildDir, limiter), "nothing to convert");
+    }
+}
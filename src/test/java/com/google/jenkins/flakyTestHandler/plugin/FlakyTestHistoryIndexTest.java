@@ -0,0 +1,292 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistorySnapshot.BuildStats;
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestResultAction.FlakyRunStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@WithJenkins
+class FlakyTestHistoryIndexTest {
+
+    private static final String TEST_ONE = "testOne";
+
+    private static final String TEST_TWO = "testTwo";
+
+    private static final String REVISION_ONE = "revision_one";
+
+    private static final String REVISION_TWO = "revision_two";
+
+    // Keep the stats reachable, FlakyTestResultAction only holds them in a cache
+    private final List<FlakyRunStats> runStats = new ArrayList<>();
+
+    @Test
+    void testIndexIsAppendedAndReloaded(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+
+        jenkins.buildAndAssertSuccess(project);
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_ONE, new SingleTestFlakyStats(1, 0, 0),
+                        new SingleTestFlakyStats(0, 2, 0))).get());
+
+        FlakyTestHistoryIndex index = FlakyTestHistoryIndex.forProject(project);
+        HistoryAggregatedFlakyTestResultAction history = index.getHistory();
+        assertTrue(index.getIndexFile().exists(), "Index should be written on first load");
+        assertSame(history, FlakyTestHistoryIndex.forProject(project).getHistory(),
+                "History should only be loaded once");
+
+        // A completed build is appended to the loaded history
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_TWO, new SingleTestFlakyStats(1, 1, 0),
+                        new SingleTestFlakyStats(1, 0, 0))).get());
+        assertHistory(history);
+
+        // Reloading from the index gives the same history
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        assertHistory(FlakyTestHistoryIndex.forProject(project).getHistory());
+
+        // A corrupt index is rebuilt from the builds
+        File indexFile = FlakyTestHistoryIndex.forProject(project).getIndexFile();
+        Files.write(indexFile.toPath(), "corrupt".getBytes(StandardCharsets.UTF_8));
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        assertHistory(FlakyTestHistoryIndex.forProject(project).getHistory());
+    }
+
+    @Test
+    void testSnapshotIsReloadedWithoutRebuild(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_ONE, new SingleTestFlakyStats(1, 0, 0),
+                        new SingleTestFlakyStats(0, 2, 0))).get());
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_TWO, new SingleTestFlakyStats(1, 1, 0),
+                        new SingleTestFlakyStats(1, 0, 0))).get());
+        assertSnapshotIsReloaded(project);
+
+        FlakyTestHandlerConfiguration.get().setHistoryWindowBuilds(5);
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        assertSnapshotIsReloaded(project);
+    }
+
+    @Test
+    void testTornRecordIsDroppedAndCaughtUp(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_ONE, new SingleTestFlakyStats(1, 0, 0),
+                        new SingleTestFlakyStats(0, 2, 0))).get());
+        FlakyTestHistoryIndex index = FlakyTestHistoryIndex.forProject(project);
+        index.getHistory();
+        // Appended to the index after its snapshot
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_TWO, new SingleTestFlakyStats(1, 1, 0),
+                        new SingleTestFlakyStats(1, 0, 0))).get());
+
+        // Tear the last record as an unclean shutdown would
+        File indexFile = index.getIndexFile();
+        long length = indexFile.length();
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.setLength(length - 3);
+        }
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        assertHistory(FlakyTestHistoryIndex.forProject(project).getHistory());
+        assertEquals(length, indexFile.length(), "torn record should be appended again");
+
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        assertHistory(FlakyTestHistoryIndex.forProject(project).getHistory());
+    }
+
+    @Test
+    void testDeletedBuildIsSubtracted(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_ONE, new SingleTestFlakyStats(1, 0, 0),
+                        new SingleTestFlakyStats(0, 2, 0))).get());
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_TWO, new SingleTestFlakyStats(1, 1, 0),
+                        new SingleTestFlakyStats(1, 0, 0))).get());
+        FreeStyleBuild last = jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createSingleTestAction(REVISION_TWO, new SingleTestFlakyStats(0, 1, 0))).get());
+
+        HistoryAggregatedFlakyTestResultAction history =
+                FlakyTestHistoryIndex.forProject(project).getHistory();
+        assertEquals(1, history.getAggregatedFlakyStats().size(), "wrong number of tests");
+
+        // Deleting the last build subtracts its stats and restores the tests of the previous one
+        last.delete();
+        assertHistory(history);
+
+        // The deletion is recorded in the index
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        assertHistory(FlakyTestHistoryIndex.forProject(project).getHistory());
+    }
+
+    @Test
+    void testIndexIsRebuiltFromSegment(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_ONE, new SingleTestFlakyStats(1, 0, 0),
+                        new SingleTestFlakyStats(0, 2, 0))).get());
+        FlakyTestStatsSegment segment = new FlakyTestStatsSegment(project);
+        segment.compact();
+        assertEquals(1, segment.readAll().size(), "wrong number of compacted builds");
+
+        // Builds completed after the compaction are read from their own stats file
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_TWO, new SingleTestFlakyStats(1, 1, 0),
+                        new SingleTestFlakyStats(1, 0, 0))).get());
+        FlakyTestHistoryIndex.forProject(project).getIndexFile().delete();
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        assertHistory(FlakyTestHistoryIndex.forProject(project).getHistory());
+
+        segment.compact();
+        assertEquals(2, segment.readAll().size(), "wrong number of compacted builds");
+        FlakyTestHistoryIndex.forProject(project).getIndexFile().delete();
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        assertHistory(FlakyTestHistoryIndex.forProject(project).getHistory());
+    }
+
+    @Test
+    void testSegmentDropsDeletedBuilds(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+
+        FreeStyleBuild first = jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_ONE, new SingleTestFlakyStats(1, 0, 0),
+                        new SingleTestFlakyStats(0, 2, 0))).get());
+        FreeStyleBuild second = jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_TWO, new SingleTestFlakyStats(1, 1, 0),
+                        new SingleTestFlakyStats(1, 0, 0))).get());
+        FlakyTestStatsSegment segment = new FlakyTestStatsSegment(project);
+        segment.compact();
+        long length = segment.getSegmentFile().length();
+        long indexLength = segment.getSegmentIndexFile().length();
+
+        first.delete();
+        segment.compact();
+        assertTrue(segment.getSegmentFile().length() < length, "segment should shrink");
+        assertTrue(segment.getSegmentIndexFile().length() < indexLength, "index should shrink");
+        Map<Integer, BuildStats> compacted = segment.readAll();
+        assertEquals(1, compacted.size(), "wrong number of compacted builds");
+        assertEquals(REVISION_TWO, compacted.get(second.getNumber()).getTestFlakyStatsMap()
+                .get(TEST_ONE).getRevision(), "wrong stats kept");
+
+        // The rewritten segment is read back the same way
+        segment = new FlakyTestStatsSegment(project);
+        assertEquals(1, segment.readAll().size(), "wrong number of compacted builds");
+    }
+
+    @Test
+    void testHistoryActionIsLoadedInBackground(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_ONE, new SingleTestFlakyStats(1, 0, 0),
+                        new SingleTestFlakyStats(0, 2, 0))).get());
+        jenkins.waitForCompletion(project.scheduleBuild2(0,
+                createAction(REVISION_TWO, new SingleTestFlakyStats(1, 1, 0),
+                        new SingleTestFlakyStats(1, 0, 0))).get());
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+
+        FlakyTestHistoryIndex index = FlakyTestHistoryIndex.forProject(project);
+        HistoryAggregatedFlakyTestResultAction action = index.getHistoryAction();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (action.isLoading() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(action.isLoading(), "History should be loaded in the background");
+        assertSame(action, index.getHistory(), "Action should show the loaded history");
+        assertHistory(action);
+    }
+
+    private static void assertSnapshotIsReloaded(FreeStyleProject project) {
+        FlakyTestHistoryIndex index = FlakyTestHistoryIndex.forProject(project);
+        FlakyTestHistorySnapshot written = index.getHistory().getSnapshot();
+        File indexFile = index.getIndexFile();
+        assertTrue(indexFile.setLastModified(1000), "failed to date the index");
+
+        new FlakyTestHistoryIndex.ItemListenerImpl().onDeleted(project);
+        FlakyTestHistorySnapshot reloaded =
+                FlakyTestHistoryIndex.forProject(project).getHistory().getSnapshot();
+        assertEquals(1000, indexFile.lastModified(), "index shouldn't be rebuilt");
+        assertEquals(written.getWindowBuilds(), reloaded.getWindowBuilds(), "wrong window builds");
+        assertEquals(written.getWindowDays(), reloaded.getWindowDays(), "wrong window days");
+        assertEquals(written.getNewestTimestamp(), reloaded.getNewestTimestamp(),
+                "wrong newest timestamp");
+        assertEquals(written.getBuildNumbers(), reloaded.getBuildNumbers(), "wrong builds");
+        assertHistory(FlakyTestHistoryIndex.forProject(project).getHistory());
+    }
+
+    private static void assertHistory(HistoryAggregatedFlakyTestResultAction history) {
+        Map<String, SingleTestFlakyStats> testOneRevisions =
+                history.getAggregatedTestFlakyStatsWithRevision().get(TEST_ONE);
+        assertEquals(2, testOneRevisions.size(), "wrong number of revisions");
+        assertEquals(1, testOneRevisions.get(REVISION_TWO).getFail(), "wrong number fails");
+
+        SingleTestFlakyStats testOneStats = history.getAggregatedFlakyStats().get(TEST_ONE);
+        assertEquals(1, testOneStats.getPass(), "wrong number passes");
+        assertEquals(1, testOneStats.getFlake(), "wrong number flakes");
+
+        SingleTestFlakyStats testTwoStats = history.getAggregatedFlakyStats().get(TEST_TWO);
+        assertEquals(1, testTwoStats.getPass(), "wrong number passes");
+        assertEquals(1, testTwoStats.getFail(), "wrong number fails");
+    }
+
+    private FlakyTestResultAction createSingleTestAction(String revision,
+            SingleTestFlakyStats testOne) {
+        Map<String, SingleTestFlakyStatsWithRevision> stats = new HashMap<>();
+        stats.put(TEST_ONE, new SingleTestFlakyStatsWithRevision(testOne, revision));
+        return createAction(stats);
+    }
+
+    private FlakyTestResultAction createAction(String revision, SingleTestFlakyStats testOne,
+            SingleTestFlakyStats testTwo) {
+        Map<String, SingleTestFlakyStatsWithRevision> stats = new HashMap<>();
+        stats.put(TEST_ONE, new SingleTestFlakyStatsWithRevision(testOne, revision));
+        stats.put(TEST_TWO, new SingleTestFlakyStatsWithRevision(testTwo, revision));
+        return createAction(stats);
+    }
+
+    private FlakyTestResultAction createAction(Map<String, SingleTestFlakyStatsWithRevision> stats) {
+        FlakyRunStats flakyRunStats = new FlakyRunStats(stats);
+        runStats.add(flakyRunStats);
+
+        FlakyTestResultAction action = new FlakyTestResultAction();
+        action.setFlakyRunStats(flakyRunStats);
+        return action;
+    }
+}
@@ -0,0 +1,254 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlakyTestHistorySnapshotTest {
+
+    private static final String TEST_ONE = "testOne";
+
+    private static final String TEST_TWO = "testTwo";
+
+    @Test
+    void testPublishedSnapshotsAreNotModified() {
+        FlakyTestHistorySnapshot first = new FlakyTestHistorySnapshot.Builder(
+                FlakyTestHistorySnapshot.EMPTY)
+                .add(1, false, 0L, stats("rev1", 1, 0))
+                .add(2, false, 0L, stats("rev2", 0, 1))
+                .build();
+
+        // Merge into the latest revision, start a new one, then merge into an older one
+        FlakyTestHistorySnapshot second = new FlakyTestHistorySnapshot.Builder(first)
+                .add(3, false, 0L, stats("rev2", 1, 0))
+                .build();
+        FlakyTestHistorySnapshot third = new FlakyTestHistorySnapshot.Builder(second)
+                .add(4, false, 0L, stats("rev3", 1, 0))
+                .add(5, true, 0L, stats("rev1", 0, 1))
+                .build();
+
+        assertRevision(first, "rev2", 0, 1);
+        assertEquals(2, first.getTestRevisionSeries().get(TEST_ONE).size());
+
+        assertRevision(second, "rev2", 1, 1);
+        assertEquals(2, second.getTestRevisionSeries().get(TEST_ONE).size());
+
+        assertRevision(third, "rev1", 1, 1);
+        assertRevision(third, "rev3", 1, 0);
+        assertArrayEquals(new String[]{"rev1", "rev2", "rev3"},
+                third.getTestRevisionSeries().get(TEST_ONE).asMap().keySet().toArray(new String[0]),
+                "Revisions should be kept in the order they were first seen");
+        assertRevision(second, "rev1", 1, 0);
+        assertEquals(4, third.getAllTestsBuildNumber(), "Deflake builds don't update all tests");
+    }
+
+    @Test
+    void testMergedRangesMatchSequentialAggregation() {
+        List<Map<String, SingleTestFlakyStatsWithRevision>> builds = Arrays.asList(
+                stats("rev1", 1, 0), stats("rev2", 0, 1), stats("rev1", 0, 1),
+                stats("rev3", 1, 0), stats("rev2", 1, 0), stats("rev4", 0, 1));
+
+        FlakyTestHistorySnapshot sequential = aggregate(builds, 0, builds.size()).build();
+        for (int split = 0; split <= builds.size(); split++) {
+            FlakyTestHistorySnapshot merged = aggregate(builds, 0, split)
+                    .merge(aggregate(builds, split, builds.size()))
+                    .build();
+            assertEquals(sequential.getTestRevisionSeries().get(TEST_ONE).asMap().keySet()
+                            .toString(),
+                    merged.getTestRevisionSeries().get(TEST_ONE).asMap().keySet().toString(),
+                    "Revisions should be kept in the order they were first seen");
+            for (String revision : new String[]{"rev1", "rev2", "rev3", "rev4"}) {
+                SingleTestFlakyStats expected = sequential.getTestRevisionSeries().get(TEST_ONE)
+                        .asMap().get(revision);
+                assertRevision(merged, revision, expected.getPass(), expected.getFail());
+            }
+            assertEquals(sequential.getBuildNumbers(), merged.getBuildNumbers());
+            assertEquals(sequential.getAllTestsBuildNumber(), merged.getAllTestsBuildNumber());
+        }
+    }
+
+    @Test
+    void testSummaryFollowsRevisionClassification() {
+        FlakyTestHistorySnapshot passed = new FlakyTestHistorySnapshot.Builder(
+                FlakyTestHistorySnapshot.EMPTY)
+                .add(1, false, 0L, stats("rev1", 1, 0))
+                .add(2, false, 0L, stats("rev2", 0, 1))
+                .build();
+        assertSummary(passed, 1, 1, 0);
+        assertTrue(passed.getFlakyAggregatedFlakyStats().isEmpty());
+
+        // rev1 both passed and failed, so it moves from passed to flaked
+        FlakyTestHistorySnapshot flaked = new FlakyTestHistorySnapshot.Builder(passed)
+                .add(3, false, 0L, stats("rev1", 0, 1))
+                .build();
+        assertSummary(flaked, 0, 1, 1);
+        assertEquals(Collections.singleton(TEST_ONE),
+                flaked.getFlakyAggregatedFlakyStats().keySet());
+        assertSummary(passed, 1, 1, 0);
+
+        SingleTestFlakyStats folded = HistoryAggregatedFlakyTestResultAction
+                .REVISION_STATS_MAP_TO_AGGREGATED_STATS
+                .apply(flaked.getTestRevisionSeries().get(TEST_ONE).asMap());
+        SingleTestFlakyStats summary = flaked.getAggregatedFlakyStats().get(TEST_ONE);
+        assertEquals(folded.getPass(), summary.getPass(), "wrong number passes");
+        assertEquals(folded.getFail(), summary.getFail(), "wrong number fails");
+        assertEquals(folded.getFlake(), summary.getFlake(), "wrong number flakes");
+    }
+
+    @Test
+    void testWindowEvictsOldestBuilds() {
+        FlakyTestHistorySnapshot windowed = new FlakyTestHistorySnapshot.Builder(
+                FlakyTestHistorySnapshot.empty(2, 0))
+                .add(1, false, 0L, stats("rev1", 1, 0))
+                .add(2, false, 0L, stats("rev1", 0, 1))
+                .add(3, false, 0L, stats("rev2", 1, 0))
+                .build();
+
+        assertEquals(new TreeSet<>(Arrays.asList(2, 3)), windowed.getBuildNumbers());
+        assertRevision(windowed, "rev1", 0, 1);
+        assertRevision(windowed, "rev2", 1, 0);
+        assertSummary(windowed, 1, 1, 0);
+
+        // Builds which leave the window are subtracted until no stats are left for a revision
+        FlakyTestHistorySnapshot moved = new FlakyTestHistorySnapshot.Builder(windowed)
+                .add(4, false, 0L, stats("rev2", 1, 0))
+                .build();
+        assertArrayEquals(new String[]{"rev2"},
+                moved.getTestRevisionSeries().get(TEST_ONE).asMap().keySet().toArray(new String[0]));
+        assertSummary(moved, 1, 0, 0);
+        assertSummary(windowed, 1, 1, 0);
+    }
+
+    @Test
+    void testWindowEvictsOldBuilds() {
+        long day = TimeUnit.DAYS.toMillis(1);
+        FlakyTestHistorySnapshot windowed = new FlakyTestHistorySnapshot.Builder(
+                FlakyTestHistorySnapshot.empty(0, 1))
+                .add(1, false, 0L, stats("rev1", 1, 0))
+                .add(2, false, day / 2, stats("rev2", 0, 1))
+                .add(3, false, 2 * day, stats("rev3", 1, 0))
+                .build();
+
+        assertEquals(Collections.singleton(3), windowed.getBuildNumbers());
+        assertEquals(1, windowed.getTestRevisionSeries().get(TEST_ONE).size());
+        assertSummary(windowed, 1, 0, 0);
+    }
+
+    @Test
+    void testDroppedRevisionsAreCompacted() {
+        FlakyTestHistorySnapshot snapshot = FlakyTestHistorySnapshot.empty(1, 0);
+        for (int i = 1; i <= 200; i++) {
+            snapshot = new FlakyTestHistorySnapshot.Builder(snapshot)
+                    .add(i, false, 0L, stats("rev" + i, i % 2, 1 - i % 2))
+                    .build();
+        }
+
+        assertArrayEquals(new String[]{"rev200"},
+                snapshot.getTestRevisionSeries().get(TEST_ONE).asMap().keySet()
+                        .toArray(new String[0]));
+        assertRevision(snapshot, "rev200", 0, 1);
+        assertSummary(snapshot, 0, 1, 0);
+    }
+
+    @Test
+    void testRemovedBuildGivesAllTestsBack() {
+        Map<String, SingleTestFlakyStatsWithRevision> secondBuild =
+                new HashMap<>(stats("rev2", 0, 1));
+        secondBuild.put(TEST_TWO, new SingleTestFlakyStatsWithRevision(
+                new SingleTestFlakyStats(1, 0, 0), "rev2"));
+        FlakyTestHistorySnapshot windowed = new FlakyTestHistorySnapshot.Builder(
+                FlakyTestHistorySnapshot.empty(10, 0))
+                .add(1, false, 0L, stats("rev1", 1, 0))
+                .add(2, false, 0L, secondBuild)
+                .add(3, true, 0L, stats("rev2", 1, 0))
+                .build();
+        assertEquals(2, windowed.getAllTestsBuildNumber());
+
+        FlakyTestHistorySnapshot removed = new FlakyTestHistorySnapshot.Builder(windowed)
+                .remove(2, secondBuild)
+                .build();
+        assertEquals(1, removed.getAllTestsBuildNumber());
+        assertEquals(Collections.singleton(TEST_ONE), removed.getAllTests());
+        assertFalse(removed.getTestRevisionSeries().containsKey(TEST_TWO));
+        assertRevision(removed, "rev2", 1, 0);
+    }
+
+    @Test
+    void testBuildsAreOnlyAggregatedOnce() {
+        FlakyTestHistorySnapshot snapshot = new FlakyTestHistorySnapshot.Builder(
+                FlakyTestHistorySnapshot.EMPTY)
+                .add(1, false, 0L, stats("rev1", 1, 0))
+                .add(1, false, 0L, stats("rev1", 1, 0))
+                .build();
+        assertRevision(snapshot, "rev1", 1, 0);
+    }
+
+    @Test
+    void testBuilderCannotBeReused() {
+        FlakyTestHistorySnapshot.Builder builder =
+                new FlakyTestHistorySnapshot.Builder(FlakyTestHistorySnapshot.EMPTY);
+        builder.build();
+        assertThrows(IllegalStateException.class, () -> builder.add(1, false, 0L, stats("rev1", 1, 0)));
+    }
+
+    private static void assertRevision(FlakyTestHistorySnapshot snapshot, String revision,
+            int pass, int fail) {
+        SingleTestFlakyStats stats = snapshot.getTestRevisionSeries().get(TEST_ONE).asMap()
+                .get(revision);
+        assertEquals(pass, stats.getPass(), "wrong number passes");
+        assertEquals(fail, stats.getFail(), "wrong number fails");
+    }
+
+    private static void assertSummary(FlakyTestHistorySnapshot snapshot, int pass, int fail,
+            int flake) {
+        SingleTestFlakyStats summary = snapshot.getAggregatedFlakyStats().get(TEST_ONE);
+        assertEquals(pass, summary.getPass(), "wrong number passes");
+        assertEquals(fail, summary.getFail(), "wrong number fails");
+        assertEquals(flake, summary.getFlake(), "wrong number flakes");
+    }
+
+    private static FlakyTestHistorySnapshot.Builder aggregate(
+            List<Map<String, SingleTestFlakyStatsWithRevision>> builds, int from, int to) {
+        FlakyTestHistorySnapshot.Builder builder =
+                new FlakyTestHistorySnapshot.Builder(FlakyTestHistorySnapshot.EMPTY);
+        for (int i = from; i < to; i++) {
+            builder.add(i + 1, false, 0L, builds.get(i));
+        }
+        return builder;
+    }
+
+    private static Map<String, SingleTestFlakyStatsWithRevision> stats(String revision, int pass,
+            int fail) {
+        return Collections.singletonMap(TEST_ONE,
+                new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(pass, fail, 0),
+                        revision));
+    }
+}
@@ -0,0 +1,70 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistoryTable.SortKey;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FlakyTestHistoryTableTest {
+
+    @Test
+    void testSortByFlakeRate() {
+        List<Map.Entry<String, SingleTestFlakyStats>> sorted =
+                FlakyTestHistoryTable.sort(createStats(), SortKey.FLAKE_RATE, true);
+
+        assertEquals("com.example.BTest", sorted.get(0).getKey(), "wrong most flaky test");
+        assertEquals("com.example.ATest", sorted.get(1).getKey(), "wrong second flaky test");
+        assertEquals("org.example.CTest", sorted.get(2).getKey(), "ties should be sorted by name");
+        assertEquals("org.example.DTest", sorted.get(3).getKey(), "ties should be sorted by name");
+    }
+
+    @Test
+    void testPageIsFiltered() {
+        List<Map.Entry<String, SingleTestFlakyStats>> sorted =
+                FlakyTestHistoryTable.sort(createStats(), SortKey.parse("passes"), false);
+
+        FlakyTestHistoryTable page = FlakyTestHistoryTable.page(sorted, "EXAMPLE.", 1, 2);
+        assertEquals(4, page.getTotal(), "wrong number of matching tests");
+        assertEquals(1, page.getStart(), "wrong start");
+        assertEquals(2, page.getRows().size(), "wrong page size");
+        assertEquals("com.example.ATest", page.getRows().get(0).getKey(), "wrong first row");
+        assertEquals("org.example.CTest", page.getRows().get(1).getKey(), "wrong second row");
+
+        page = FlakyTestHistoryTable.page(sorted, "com.", 0, 0);
+        assertEquals(2, page.getTotal(), "wrong number of matching tests");
+        assertEquals("com.example.BTest", page.getRows().get(0).getKey(), "wrong first row");
+        assertEquals("com.example.ATest", page.getRows().get(1).getKey(), "wrong second row");
+
+        page = FlakyTestHistoryTable.page(sorted, null, 10, 2);
+        assertEquals(4, page.getTotal(), "wrong number of tests");
+        assertEquals(0, page.getRows().size(), "page after the last test should be empty");
+    }
+
+    private static Map<String, SingleTestFlakyStats> createStats() {
+        Map<String, SingleTestFlakyStats> stats = new LinkedHashMap<>();
+        stats.put("org.example.DTest", new SingleTestFlakyStats(4, 0, 0));
+        stats.put("com.example.ATest", new SingleTestFlakyStats(1, 2, 1));
+        stats.put("org.example.CTest", new SingleTestFlakyStats(2, 0, 0));
+        stats.put("com.example.BTest", new SingleTestFlakyStats(0, 0, 3));
+        return stats;
+    }
+}
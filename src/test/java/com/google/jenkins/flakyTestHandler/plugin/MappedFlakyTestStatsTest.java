@@ -0,0 +1,121 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import com.google.jenkins.flakyTestHandler.plugin.FlakyTestHistorySnapshot.BuildStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStats;
+import com.google.jenkins.flakyTestHandler.plugin.HistoryAggregatedFlakyTestResultAction.SingleTestFlakyStatsWithRevision;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedFlakyTestStatsTest {
+
+    private final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+
+    private final SortedMap<Integer, long[]> entries = new TreeMap<>();
+
+    @Test
+    void testTestsAreLookedUpByName() throws IOException {
+        Map<String, SingleTestFlakyStatsWithRevision> tests = new HashMap<>();
+        tests.put("com.example.FooTest.testB", createStats(1, 0, 0, "rev1"));
+        tests.put("com.example.FooTest.testA", createStats(0, 1, 0, "rev1"));
+        tests.put("com.example.BarTest.testÄ", createStats(0, 0, 2, "rev2"));
+        append(new BuildStats(1, false, 1000L, tests));
+        append(new BuildStats(2, true, 2000L,
+                createTests("com.example.FooTest.testA", createStats(1, 0, 0, "rev2"))));
+        MappedFlakyTestStats mapped = map();
+
+        SingleTestFlakyStatsWithRevision stats =
+                mapped.getTestStats(1, "com.example.BarTest.testÄ");
+        assertEquals("rev2", stats.getRevision(), "wrong revision");
+        assertEquals(2, stats.getStats().getFlake(), "wrong number of flakes");
+        assertEquals(1, mapped.getTestStats(1, "com.example.FooTest.testA").getStats().getFail(),
+                "wrong number of fails");
+        assertEquals(1, mapped.getTestStats(2, "com.example.FooTest.testA").getStats().getPass(),
+                "wrong number of passes");
+        assertNull(mapped.getTestStats(2, "com.example.FooTest.testB"),
+                "test isn't run in build");
+        assertNull(mapped.getTestStats(3, "com.example.FooTest.testA"), "build isn't compacted");
+
+        assertEquals(Arrays.asList("com.example.BarTest.testÄ", "com.example.FooTest.testA",
+                "com.example.FooTest.testB"), mapped.getTestNames(1), "wrong test names");
+        BuildStats buildStats = mapped.getBuildStats(2);
+        assertTrue(buildStats.isDeflake(), "build should be a deflake build");
+        assertEquals(2000L, buildStats.getTimestamp(), "wrong timestamp");
+        assertEquals(1, buildStats.getTestFlakyStatsMap().size(), "wrong number of tests");
+    }
+
+    @Test
+    void testBuildWithoutStats() throws IOException {
+        append(null);
+        MappedFlakyTestStats mapped = map();
+
+        assertTrue(mapped.contains(1), "build should be compacted");
+        assertNull(mapped.getBuildStats(1), "build should have no stats");
+        assertNull(mapped.getTestNames(1), "build should have no stats");
+        assertFalse(mapped.contains(2), "build shouldn't be compacted");
+    }
+
+    @Test
+    void testCorruptRecordIsDetected() throws IOException {
+        append(new BuildStats(1, false, 1000L,
+                createTests("com.example.FooTest.testA", createStats(1, 0, 0, "rev1"))));
+        ByteBuffer buffer = ByteBuffer.wrap(segment.toByteArray());
+        // Point the name of the test out of the record
+        buffer.putInt(4 + 1 + 8 + 4 + 4 + 8, 1000);
+        MappedFlakyTestStats mapped = new MappedFlakyTestStats(buffer, entries);
+
+        assertThrows(IOException.class, () -> mapped.getTestStats(1, "com.example.FooTest.testA"));
+        assertThrows(IOException.class, () -> mapped.getBuildStats(1));
+    }
+
+    private void append(BuildStats buildStats) throws IOException {
+        int buildNumber = buildStats == null ? entries.size() + 1 : buildStats.getBuildNumber();
+        byte[] record = MappedFlakyTestStats.toRecord(buildNumber, buildStats);
+        entries.put(buildNumber, new long[] {segment.size(), record.length});
+        segment.write(record);
+    }
+
+    private MappedFlakyTestStats map() {
+        return new MappedFlakyTestStats(ByteBuffer.wrap(segment.toByteArray()), entries);
+    }
+
+    private static Map<String, SingleTestFlakyStatsWithRevision> createTests(String testName,
+            SingleTestFlakyStatsWithRevision stats) {
+        Map<String, SingleTestFlakyStatsWithRevision> tests = new HashMap<>();
+        tests.put(testName, stats);
+        return tests;
+    }
+
+    private static SingleTestFlakyStatsWithRevision createStats(int pass, int fail, int flake,
+            String revision) {
+        return new SingleTestFlakyStatsWithRevision(new SingleTestFlakyStats(pass, fail, flake),
+                revision);
+    }
+}
@@ -0,0 +1,82 @@
+/* Copyright 2014 Google Inc. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.jenkins.flakyTestHandler.plugin;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@WithJenkins
+class RevisionResolverTest {
+
+    @Test
+    void testBuildNumberIsDefaultRevision(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+        assertEquals("1", RevisionResolver.resolveRevision(build), "wrong revision");
+    }
+
+    @Test
+    void testCustomResolverIsUsed(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+        assertEquals("custom-1", RevisionResolver.resolveRevision(build), "wrong revision");
+        assertEquals(1, CustomRevisionResolver.calls, "revision should be resolved once");
+        RevisionResolver.resolveRevision(build);
+        assertEquals(1, CustomRevisionResolver.calls, "revision should be cached");
+    }
+
+    @Test
+    void testBuildNumberIsNotCached(JenkinsRule jenkins) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("project");
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+        assertEquals("1", RevisionResolver.resolveRevision(build), "wrong revision");
+        // e.g. the SCM data is only attached to the build later on
+        LateRevisionResolver.revision = "late";
+        assertEquals("late", RevisionResolver.resolveRevision(build), "wrong revision");
+    }
+
+    @TestExtension("testBuildNumberIsNotCached")
+    public static class LateRevisionResolver extends RevisionResolver {
+
+        static String revision;
+
+        @Override
+        public String resolve(Run<?, ?> build) {
+            return revision;
+        }
+    }
+
+    @TestExtension("testCustomResolverIsUsed")
+    public static class CustomRevisionResolver extends RevisionResolver {
+
+        static int calls;
+
+        @Override
+        public String resolve(Run<?, ?> build) {
+            calls++;
+            return "custom-" + build.getNumber();
+        }
+    }
+}